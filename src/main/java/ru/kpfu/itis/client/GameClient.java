@@ -76,7 +76,7 @@ public class GameClient extends JFrame {
 
     private void updateGameState(GameWorld.GameState state) {
         SwingUtilities.invokeLater(() -> {
-            gamePanel.updateGameState(state, playerId);
+            gamePanel.updateGameState(state, playerId, networkClient.getVisibility());
             infoPanel.updateInfo(state, playerId);
 
             gamePanel.requestFocusInWindow();
@@ -183,12 +183,38 @@ public class GameClient extends JFrame {
     }
 
     private void sendChatMessage(String text) {
+        if (networkClient != null && handleRoomCommand(text.trim())) {
+            return;
+        }
         if (networkClient != null && !text.trim().isEmpty()) {
             networkClient.sendChat(text);
             chatPanel.addMessage("Вы: " + text);
         }
     }
 
+    /**
+     * Команды чата для комнат: /rooms, /create [название], /join номер.
+     */
+    private boolean handleRoomCommand(String text) {
+        if (text.equals("/rooms")) {
+            networkClient.requestRoomList();
+            return true;
+        }
+        if (text.equals("/create") || text.startsWith("/create ")) {
+            networkClient.createRoom(text.substring("/create".length()).trim());
+            return true;
+        }
+        if (text.startsWith("/join ")) {
+            try {
+                networkClient.joinRoom(Integer.parseInt(text.substring("/join ".length()).trim()));
+            } catch (NumberFormatException e) {
+                chatPanel.addMessage("Использование: /join номер_комнаты");
+            }
+            return true;
+        }
+        return false;
+    }
+
     @Override
     public void dispose() {
         if (networkClient != null) {
@@ -0,0 +1,82 @@
+package ru.kpfu.itis.client;
+
+import ru.kpfu.itis.common.Enemy;
+import ru.kpfu.itis.common.GameEvent;
+import ru.kpfu.itis.common.TrapAttack;
+import ru.kpfu.itis.protocol.GameProtocol;
+
+import java.util.Map;
+
+/**
+ * Превращает игровые события сервера в строки для чата.
+ */
+public class GameEventFormatter {
+
+    private static final String RESTART_NOTICE = " Уровень будет перезапущен через 3 секунды...";
+
+    public static String format(GameEvent event, Map<Integer, GameProtocol.PlayerInfoData> playerInfo) {
+        String name = playerName(event.playerId, playerInfo);
+
+        switch (event.code) {
+            case GameEvent.ALL_AT_DOORS:
+                return "🎉 Все игроки в дверях! Переход на следующий уровень через 2 секунды...";
+            case GameEvent.LEVEL_LOADED:
+                return "🌌 Уровень " + event.getArg(0) + " загружен!";
+            case GameEvent.LEVEL_COMPLETE:
+                return "Уровень " + event.getArg(0) + " пройден!";
+            case GameEvent.LEVEL_RESTARTED:
+                return "Уровень перезапущен! Все игроки начинают заново.";
+            case GameEvent.TRAP_HIT:
+                return name + " попал в ловушку" + trapSuffix(event.getArg(1))
+                        + "! Осталось жизней: " + event.getArg(0);
+            case GameEvent.ENEMY_ATTACK:
+                return Enemy.EnemyType.fromId(event.getArg(0)) + " атаковал " + name
+                        + "! Осталось жизней: " + event.getArg(1);
+            case GameEvent.PATROL_HIT:
+                return name + " столкнулся с патрульным мобом! Осталось жизней: " + event.getArg(0);
+            case GameEvent.PLAYER_DIED:
+                switch (event.getArg(0)) {
+                    case GameEvent.CAUSE_PATROL:
+                        return name + " погиб от патрульного моба!" + RESTART_NOTICE;
+                    case GameEvent.CAUSE_TRAP:
+                        return name + " погиб от ловушки!" + RESTART_NOTICE;
+                    default:
+                        return name + " погиб!" + RESTART_NOTICE;
+                }
+            case GameEvent.CHEST_FOUND:
+                return name + " нашел сундук!";
+            case GameEvent.AT_DOOR:
+                return name + " у двери!";
+            case GameEvent.DIAMOND_COLLECTED:
+                if (event.getArg(2) > 1) {
+                    return name + " собрал " + event.getArg(2) + " алмаза благодаря своей ловкости! ("
+                            + event.getArg(3) + "/" + event.getArg(4) + ")";
+                }
+                return name + " собрал алмаз! (" + event.getArg(3) + "/" + event.getArg(4) + ")";
+            case GameEvent.ALL_DIAMONDS_COLLECTED:
+                return "💎 Все алмазы собраны! Идите к дверям!";
+            case GameEvent.PLAYER_JOINED: {
+                GameProtocol.PlayerInfoData info = playerInfo.get(event.playerId);
+                String character = info != null ? " (" + info.characterType + ")" : "";
+                return "👤 " + name + character + " присоединился к игре";
+            }
+            case GameEvent.PLAYER_LEFT: {
+                GameProtocol.PlayerInfoData info = playerInfo.get(event.playerId);
+                String suffix = info != null ? " (" + info.name + ")" : "";
+                return "Игрок #" + event.playerId + suffix + " отключился";
+            }
+            default:
+                return "Неизвестное событие " + event.code;
+        }
+    }
+
+    private static String playerName(int playerId, Map<Integer, GameProtocol.PlayerInfoData> playerInfo) {
+        GameProtocol.PlayerInfoData info = playerInfo.get(playerId);
+        return info != null ? info.name : "Игрок #" + playerId;
+    }
+
+    private static String trapSuffix(int attack) {
+        TrapAttack[] attacks = TrapAttack.values();
+        return attack >= 0 && attack < attacks.length ? " (" + attacks[attack] + ")" : "";
+    }
+}
@@ -1,6 +1,7 @@
 package ru.kpfu.itis.client;
 
 import ru.kpfu.itis.common.*;
+import ru.kpfu.itis.protocol.GameProtocol;
 import ru.kpfu.itis.server.GameWorld;
 
 import javax.swing.*;
@@ -13,6 +14,10 @@ import java.awt.AlphaComposite;
 public class GamePanel extends JPanel {
     private GameWorld.GameState currentState;
     private int currentPlayerId = -1;
+    // Поле зрения игрока; null - туман не рисуется
+    private GameProtocol.VisibilityData visibility;
+    // Свой игрок из текущего снимка - центр поля зрения
+    private PlayerState viewer;
     private Timer transitionTimer;
     private Timer animationTimer;
     private SpriteManager spriteManager;
@@ -31,9 +36,11 @@ public class GamePanel extends JPanel {
         animationTimer.start();
     }
 
-    public void updateGameState(GameWorld.GameState state, int playerId) {
+    public void updateGameState(GameWorld.GameState state, int playerId, GameProtocol.VisibilityData visibility) {
         this.currentState = state;
         this.currentPlayerId = playerId;
+        this.visibility = visibility;
+        this.viewer = findPlayer(state, playerId);
 
         // Если идет переход, перерисовываем чаще для анимации
         if (state != null && state.isLevelTransitioning) {
@@ -70,6 +77,7 @@ public class GamePanel extends JPanel {
         }
 
         drawGameWorld(g2d);
+        drawFog(g2d);
         drawPlayers(g2d);
         drawEnemies(g2d);
         drawPatrolEnemies(g2d);
@@ -144,6 +152,45 @@ public class GamePanel extends JPanel {
                 }
             }
         }
+
+        // С полем зрения сервер присылает карту без алмазов - рисуем только видимые
+        if (visibility != null) {
+            for (int i = 0; i < visibility.getDiamondCount(); i++) {
+                int x = visibility.getDiamondX(i);
+                int y = visibility.getDiamondY(i);
+                if (y >= 0 && y < currentState.map.length && x >= 0 && x < currentState.map[y].length) {
+                    drawTile(g2d, TileType.DIAMOND, offsetX + x * cellSize, offsetY + y * cellSize, cellSize, x, y);
+                }
+            }
+        }
+    }
+
+    // Затемняет клетки, которых игрок сейчас не видит
+    private void drawFog(Graphics2D g2d) {
+        if (visibility == null || viewer == null || currentState.map.length == 0) return;
+
+        int cellSize = calculateCellSize();
+        int offsetX = (getWidth() - currentState.map[0].length * cellSize) / 2;
+        int offsetY = (getHeight() - currentState.map.length * cellSize) / 2;
+
+        g2d.setColor(new Color(0, 0, 0, 170));
+        for (int y = 0; y < currentState.map.length; y++) {
+            for (int x = 0; x < currentState.map[y].length; x++) {
+                if (!visibility.isVisible(viewer.x, viewer.y, x, y)) {
+                    g2d.fillRect(offsetX + x * cellSize, offsetY + y * cellSize, cellSize, cellSize);
+                }
+            }
+        }
+    }
+
+    private static PlayerState findPlayer(GameWorld.GameState state, int playerId) {
+        if (state == null) return null;
+        for (PlayerState player : state.players) {
+            if (player.id == playerId) {
+                return player;
+            }
+        }
+        return null;
     }
 
     private void drawTile(Graphics2D g2d, TileType tile, int x, int y, int size, int tileX, int tileY) {
@@ -9,6 +9,9 @@ import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
 import java.util.function.Consumer;
 
@@ -27,6 +30,19 @@ public class NetworkClient {
     private String username;
     private String characterType;
     private ScheduledExecutorService heartbeatExecutor;
+    private final Map<Integer, GameProtocol.PlayerInfoData> playerInfo = new ConcurrentHashMap<>();
+    private final SnapshotHistory receivedSnapshots = new SnapshotHistory();
+    private final FrameDecoder decoder = new FrameDecoder();
+    private volatile TileType[][] levelMap;
+    private int mapVersion = -1;
+    private boolean mapRequested = false;
+    // null - сервер не присылал поле зрения, туман не рисуется
+    private volatile GameProtocol.VisibilityData visibility;
+    // null - решать по адресу сервера: в локальной сети сжатие не нужно
+    private Boolean compressionPreference;
+    private volatile boolean compressionActive = false;
+    private volatile int roomId = -1;
+    private Consumer<List<GameProtocol.RoomInfoData>> onRoomListReceived;
 
     public boolean connect(String host, int port, String username, String characterType) {
         this.username = username;
@@ -48,7 +64,7 @@ public class NetworkClient {
             executor.execute(this::readLoop);
 
             Thread.sleep(100); 
-            sendConnectMessage(username, characterType);
+            sendConnectMessage(username, characterType, shouldRequestCompression());
 
             startHeartbeat();
 
@@ -83,9 +99,17 @@ public class NetworkClient {
         }, 10000, 10000, TimeUnit.MILLISECONDS); 
     }
 
-    private void sendConnectMessage(String username, String characterType) {
+    private boolean shouldRequestCompression() {
+        if (compressionPreference != null) {
+            return compressionPreference;
+        }
+        InetAddress address = socket.getInetAddress();
+        return !(address.isLoopbackAddress() || address.isSiteLocalAddress() || address.isLinkLocalAddress());
+    }
+
+    private void sendConnectMessage(String username, String characterType, boolean compression) {
         try {
-            GameMessage connectMsg = GameProtocol.createConnectMessage(username, characterType);
+            GameMessage connectMsg = GameProtocol.createConnectMessage(username, characterType, compression);
             synchronized (writeLock) {
                 GameProtocol.writeMessage(out, connectMsg);
             }
@@ -100,7 +124,7 @@ public class NetworkClient {
         try {
             while (connected && socket != null && !socket.isClosed() && socket.isConnected()) {
                 try {
-                    GameMessage message = GameProtocol.readMessage(in);
+                    GameMessage message = decoder.readMessage(in);
                     if (message == null) {
                         logger.info("Сервер закрыл соединение (конец потока)");
                         break;
@@ -111,17 +135,6 @@ public class NetworkClient {
 
                 } catch (ProtocolException e) {
                     logger.error("Ошибка протокола: {}", e.getMessage());
-                    if (e.getMessage().contains("Неверный заголовок")) {
-                        logger.warn("Попытка восстановить синхронизацию протокола...");
-                        try {
-                            if (in.available() > 0) {
-                                in.skip(1);
-                                continue;
-                            }
-                        } catch (IOException ex) {
-                            logger.debug("Ошибка при пропуске байта", ex);
-                        }
-                    }
                     break;
                 } catch (SocketTimeoutException e) {
                     logger.debug("Таймаут при чтении, продолжаем ожидание...");
@@ -168,6 +181,10 @@ public class NetworkClient {
                             } else if (this.playerId != newPlayerId) {
                                 logger.warn("Несоответствие playerId: было {}, стало {}", playerId, newPlayerId);
                             }
+                            if (connectData.length >= 2 && GameProtocol.CAPABILITY_DEFLATE.equals(connectData[1])) {
+                                compressionActive = true;
+                                logger.info("Сервер включил сжатие больших сообщений");
+                            }
                         } catch (NumberFormatException e) {
                             logger.error("Неверный формат playerId: {}", connectData[0], e);
                         }
@@ -176,20 +193,40 @@ public class NetworkClient {
 
                 case GameProtocol.TYPE_GAME_STATE:
                     try {
-                        Object stateObj = GameProtocol.parseGameStateMessage(message);
-                        if (stateObj instanceof GameWorld.GameState) {
-                            GameWorld.GameState state = (GameWorld.GameState) stateObj;
-                            if (onGameStateUpdate != null) {
-                                onGameStateUpdate.accept(state);
-                            }
+                        applySnapshot(message.getData());
+                    } catch (Exception e) {
+                        logger.error("Ошибка декодирования GameState", e);
+                    }
+                    break;
+
+                case GameProtocol.TYPE_GAME_STATE_DELTA:
+                    try {
+                        ByteBuffer delta = message.payload();
+                        byte[] baseline = receivedSnapshots.get(SnapshotDelta.readBaseTick(delta));
+                        if (baseline == null) {
+                            logger.debug("Нет базового снимка для дельты, запрашиваем полный снимок");
+                            sendStateAck(-1);
                         } else {
-                            logger.warn("Получен неверный тип GameState");
+                            applySnapshot(SnapshotDelta.apply(baseline, delta));
                         }
                     } catch (Exception e) {
-                        logger.error("Ошибка десериализации GameState", e);
+                        logger.error("Ошибка применения дельты GameState", e);
+                        sendStateAck(-1);
+                    }
+                    break;
+
+                case GameProtocol.TYPE_BATCH:
+                    for (GameMessage batched : GameProtocol.parseBatchMessage(message)) {
+                        handleProtocolMessage(batched);
                     }
                     break;
 
+                case GameProtocol.TYPE_PLAYER_INFO:
+                    GameProtocol.PlayerInfoData info = GameProtocol.parsePlayerInfoMessage(message);
+                    playerInfo.put(info.playerId, info);
+                    logger.debug("Получены данные игрока #{}: {} ({})", info.playerId, info.name, info.characterType);
+                    break;
+
                 case GameProtocol.TYPE_CHAT:
                     GameProtocol.MessageData chatData = GameProtocol.parseTextMessage(message);
                     if (onMessageReceived != null) {
@@ -212,17 +249,59 @@ public class NetworkClient {
                     }
                     break;
 
-                case GameProtocol.TYPE_LEVEL_UPDATE:
-                    GameProtocol.MessageData levelData = GameProtocol.parseTextMessage(message);
+                case GameProtocol.TYPE_EVENT:
+                    GameEvent event = GameProtocol.parseEventMessage(message);
+                    if (onMessageReceived != null) {
+                        onMessageReceived.accept(new Message(
+                                Message.ACTION,
+                                event.playerId,
+                                GameEventFormatter.format(event, playerInfo)
+                        ));
+                    }
+                    break;
+
+                case GameProtocol.TYPE_ROOM_JOIN:
+                    GameProtocol.RoomInfoData room = GameProtocol.parseRoomJoinedMessage(message);
+                    roomId = room.roomId;
+                    // Карту и игроков новой комнаты сервер пришлет следом
+                    levelMap = null;
+                    mapVersion = -1;
+                    mapRequested = false;
+                    visibility = null;
+                    logger.info("Вошли в комнату #{} «{}»", room.roomId, room.name);
                     if (onMessageReceived != null) {
                         onMessageReceived.accept(new Message(
-                                Message.LEVEL_UPDATE,
-                                levelData.playerId,
-                                levelData.text
+                                Message.CHAT, 0, "🚪 Комната #" + room.roomId + " «" + room.name + "» ("
+                                + room.players + "/" + room.capacity + ")"
                         ));
                     }
                     break;
 
+                case GameProtocol.TYPE_ROOM_LIST:
+                    List<GameProtocol.RoomInfoData> rooms = GameProtocol.parseRoomListMessage(message);
+                    if (onRoomListReceived != null) {
+                        onRoomListReceived.accept(rooms);
+                    } else if (onMessageReceived != null) {
+                        onMessageReceived.accept(new Message(Message.CHAT, 0, formatRoomList(rooms)));
+                    }
+                    break;
+
+                case GameProtocol.TYPE_LEVEL_UPDATE:
+                    GameProtocol.LevelData levelData = GameProtocol.parseLevelUpdateMessage(message);
+                    levelMap = levelData.map;
+                    mapVersion = levelData.mapVersion;
+                    mapRequested = false;
+                    logger.debug("Получена карта уровня {} (версия {})", levelData.level, levelData.mapVersion);
+                    break;
+
+                case GameProtocol.TYPE_TILE_CHANGE:
+                    applyTileChange(GameProtocol.parseTileChangeMessage(message));
+                    break;
+
+                case GameProtocol.TYPE_VISIBILITY:
+                    visibility = GameProtocol.parseVisibilityMessage(message);
+                    break;
+
                 case GameProtocol.TYPE_PLAYER_LIST:
                     String playerList = new String(message.getData());
                     if (onMessageReceived != null) {
@@ -254,6 +333,77 @@ public class NetworkClient {
         }
     }
 
+    private static String formatRoomList(List<GameProtocol.RoomInfoData> rooms) {
+        if (rooms.isEmpty()) {
+            return "Открытых комнат нет";
+        }
+        StringBuilder text = new StringBuilder("Комнаты:");
+        for (GameProtocol.RoomInfoData room : rooms) {
+            text.append(" #").append(room.roomId).append(" «").append(room.name).append("» ")
+                    .append(room.players).append("/").append(room.capacity)
+                    .append(" ур.").append(room.level).append(";");
+        }
+        return text.toString();
+    }
+
+    private void applyTileChange(GameProtocol.TileChangeData change) {
+        TileType[][] map = levelMap;
+        if (map == null || change.mapVersion <= mapVersion) {
+            return;
+        }
+
+        if (change.mapVersion != mapVersion + 1) {
+            logger.debug("Пропущены изменения карты ({} -> {}), запрашиваем карту заново", mapVersion, change.mapVersion);
+            requestMap();
+            return;
+        }
+
+        if (change.y >= 0 && change.y < map.length && change.x >= 0 && change.x < map[change.y].length) {
+            map[change.y][change.x] = change.tile;
+        }
+        mapVersion = change.mapVersion;
+    }
+
+    private void requestMap() {
+        if (mapRequested) return;
+
+        mapRequested = true;
+        try {
+            GameMessage requestMsg = GameProtocol.createMapRequestMessage();
+            synchronized (writeLock) {
+                GameProtocol.writeMessage(out, requestMsg);
+            }
+        } catch (Exception e) {
+            logger.debug("Ошибка запроса карты уровня", e);
+            mapRequested = false;
+        }
+    }
+
+    private void applySnapshot(byte[] snapshot) throws ProtocolException {
+        int tick = GameStateCodec.readTick(snapshot);
+        if (levelMap != null && GameStateCodec.readMapVersion(snapshot) > mapVersion) {
+            requestMap();
+        }
+        GameWorld.GameState state = GameStateCodec.decode(ByteBuffer.wrap(snapshot), playerInfo, levelMap);
+        receivedSnapshots.put(tick, snapshot);
+        sendStateAck(tick);
+
+        if (onGameStateUpdate != null) {
+            onGameStateUpdate.accept(state);
+        }
+    }
+
+    private void sendStateAck(int tick) {
+        try {
+            GameMessage ackMsg = GameProtocol.createStateAckMessage(tick);
+            synchronized (writeLock) {
+                GameProtocol.writeMessage(out, ackMsg);
+            }
+        } catch (Exception e) {
+            logger.debug("Ошибка отправки подтверждения снимка", e);
+        }
+    }
+
     public void sendMove(Direction direction) {
         if (playerId == -1 || !connected) {
             logger.warn("Не могу отправить MOVE: не подключен или playerId не установлен");
@@ -315,6 +465,41 @@ public class NetworkClient {
         }
     }
 
+    public void requestRoomList() {
+        sendRoomMessage(GameProtocol.createRoomListRequestMessage());
+    }
+
+    public void createRoom(String name) {
+        sendRoomMessage(GameProtocol.createRoomCreateMessage(name));
+    }
+
+    public void joinRoom(int roomId) {
+        sendRoomMessage(GameProtocol.createRoomJoinMessage(roomId));
+    }
+
+    private void sendRoomMessage(GameMessage message) {
+        if (!connected) {
+            logger.warn("Не могу отправить запрос комнаты: нет подключения");
+            return;
+        }
+
+        try {
+            synchronized (writeLock) {
+                GameProtocol.writeMessage(out, message);
+            }
+        } catch (Exception e) {
+            logger.error("Ошибка отправки запроса комнаты", e);
+        }
+    }
+
+    public int getRoomId() {
+        return roomId;
+    }
+
+    public void setOnRoomListReceived(Consumer<List<GameProtocol.RoomInfoData>> callback) {
+        this.onRoomListReceived = callback;
+    }
+
     public void setOnGameStateUpdate(Consumer<GameWorld.GameState> callback) {
         this.onGameStateUpdate = callback;
     }
@@ -327,6 +512,21 @@ public class NetworkClient {
         return playerId;
     }
 
+    public GameProtocol.VisibilityData getVisibility() {
+        return visibility;
+    }
+
+    /**
+     * Явно включает или выключает запрос сжатия; вызывать до connect().
+     */
+    public void setCompression(boolean enabled) {
+        this.compressionPreference = enabled;
+    }
+
+    public boolean isCompressionActive() {
+        return compressionActive;
+    }
+
     public boolean isConnected() {
         return connected && socket != null && !socket.isClosed() && socket.isConnected();
     }
@@ -31,6 +31,13 @@ public class Enemy implements Serializable {
         public String toString() {
             return name;
         }
+
+        public static EnemyType fromId(int id) {
+            for (EnemyType type : values()) {
+                if (type.id == id) return type;
+            }
+            return BAT;
+        }
     }
 
     public int id;
@@ -60,6 +67,12 @@ public class Enemy implements Serializable {
         long currentTime = System.currentTimeMillis();
         if (currentTime - lastMoveTime < 1000 / type.speed) return;
 
+        step(map);
+        lastMoveTime = currentTime;
+    }
+
+    // Один случайный шаг без проверки времени: когда ходить, решает вызывающий
+    public void step(TileType[][] map) {
         Direction[] directions = Direction.values();
         Direction newDir = directions[(int)(Math.random() * directions.length)];
 
@@ -73,8 +86,6 @@ public class Enemy implements Serializable {
             y = newY;
             direction = newDir;
         }
-
-        lastMoveTime = currentTime;
     }
 
     public void takeDamage(int damage) {
@@ -29,7 +29,13 @@ public class GameConstants {
 
     public static final int SERVER_PORT = 7777;
     public static final int MAX_PLAYERS = 3;
+    public static final int MAX_ROOMS = 256;
     public static final int GAME_TICK_MS = 100;
+    public static final int TICK_RATE = 1000 / GAME_TICK_MS;
+    // Радиус области интереса и поля зрения игрока в клетках - примерно половина окна клиента
+    public static final int VIEW_RADIUS = 12;
+    // Поле зрения уходит клиенту битовой картой (2 * радиус + 1)^2 клеток - больше не отдаем
+    public static final int MAX_VIEW_RADIUS = 1024;
 
     public static final int MAX_LEVELS = 10;
     public static final int[] LEVEL_DIAMONDS = {5, 8, 12, 15, 18, 20, 22, 25, 28, 30};
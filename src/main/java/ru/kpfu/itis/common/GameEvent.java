@@ -0,0 +1,57 @@
+package ru.kpfu.itis.common;
+
+import java.util.Arrays;
+
+/**
+ * Игровое событие: код, игрок и несколько числовых аргументов.
+ * Сервер передаёт только числа, текст для чата собирается на клиенте.
+ */
+public class GameEvent {
+
+    public static final int ALL_AT_DOORS = 1;
+    public static final int LEVEL_LOADED = 2;            // уровень
+    public static final int TRAP_HIT = 3;                // жизни, TrapAttack.ordinal() или -1 для клетки-ловушки
+    public static final int PLAYER_DIED = 4;             // причина (CAUSE_*)
+    public static final int CHEST_FOUND = 5;             // x, y
+    public static final int AT_DOOR = 6;                 // x, y
+    public static final int DIAMOND_COLLECTED = 7;       // x, y, количество, собрано, всего
+    public static final int ALL_DIAMONDS_COLLECTED = 8;
+    public static final int ENEMY_ATTACK = 9;            // EnemyType.id, жизни
+    public static final int PATROL_HIT = 10;             // жизни
+    public static final int LEVEL_RESTARTED = 11;
+    public static final int LEVEL_COMPLETE = 12;         // уровень
+    public static final int PLAYER_JOINED = 13;
+    public static final int PLAYER_LEFT = 14;
+
+    public static final int CAUSE_ENEMY = 0;
+    public static final int CAUSE_PATROL = 1;
+    public static final int CAUSE_TRAP = 2;
+
+    public static final int MAX_ARGS = 8;
+
+    public final int code;
+    public final int playerId;
+    private final int[] args;
+
+    public GameEvent(int code, int playerId, int... args) {
+        if (args.length > MAX_ARGS) {
+            throw new IllegalArgumentException("Слишком много аргументов события: " + args.length);
+        }
+        this.code = code;
+        this.playerId = playerId;
+        this.args = args;
+    }
+
+    public int getArgCount() {
+        return args.length;
+    }
+
+    public int getArg(int index) {
+        return index < args.length ? args[index] : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "GameEvent{code=" + code + ", playerId=" + playerId + ", args=" + Arrays.toString(args) + "}";
+    }
+}
@@ -16,6 +16,7 @@ public class Message implements Serializable {
     public static final int ENEMY_UPDATE = 8;
     public static final int LEVEL_UPDATE = 9;
     public static final int PLAYER_DAMAGE = 10;
+    public static final int EVENT = 11;
 
     private int type;
     private int playerId;
@@ -0,0 +1,345 @@
+package ru.kpfu.itis.common;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Карта уровня. Базовый слой разбит на фрагменты 32x32 клетки, адресуемые через таблицу
+ * фрагментов; внутри фрагмента id тайлов лежат в плоском массиве byte. Фрагмент, целиком
+ * состоящий из одного тайла (сплошная стена, пустой пол), - общий на весь процесс массив,
+ * поэтому большие однородные области карты памяти почти не занимают.
+ * Базовый слой неизменяем и один на всех, кто играет этот уровень. Изменения конкретной
+ * комнаты (собранные алмазы, сработавшие клетки) хранятся в маленьком наложении -
+ * отсортированных массивах номеров клеток (y * width + x) и новых тайлов.
+ *
+ * Объект неизменяем: withTile возвращает новую карту с копией наложения, а базовый слой
+ * не копируется. Поэтому ссылку на карту можно отдавать в снимки и в другие потоки как есть.
+ */
+public final class TileMap {
+    public static final int CHUNK_BITS = 5;
+    public static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int CHUNK_CELLS = CHUNK_SIZE * CHUNK_SIZE;
+
+    private static final TileType[] TILES_BY_ID = new TileType[256];
+    // Однородные фрагменты, общие для всех карт; сравниваются по ссылке
+    private static final byte[][] UNIFORM_CHUNKS = new byte[256][];
+    private static final int[] NO_CELLS = new int[0];
+    private static final long[] NO_KEYS = new long[0];
+    private static final byte[] NO_TILES = new byte[0];
+
+    static {
+        for (int id = 0; id < TILES_BY_ID.length; id++) {
+            TILES_BY_ID[id] = TileType.fromId(id);
+        }
+        for (TileType tile : TileType.values()) {
+            byte[] chunk = new byte[CHUNK_CELLS];
+            Arrays.fill(chunk, (byte) tile.getId());
+            UNIFORM_CHUNKS[tile.getId()] = chunk;
+        }
+    }
+
+    private final int width;
+    private final int height;
+    private final int chunksX;
+    private final byte[][] chunks;
+    private final int[] overlayCells;
+    private final byte[] overlayTiles;
+
+    private TileMap(int width, int height, int chunksX, byte[][] chunks, int[] overlayCells, byte[] overlayTiles) {
+        this.width = width;
+        this.height = height;
+        this.chunksX = chunksX;
+        this.chunks = chunks;
+        this.overlayCells = overlayCells;
+        this.overlayTiles = overlayTiles;
+    }
+
+    public static Builder builder(int width, int height, TileType fill) {
+        return new Builder(width, height, fill);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public boolean contains(int x, int y) {
+        return x >= 0 && x < width && y >= 0 && y < height;
+    }
+
+    public TileType get(int x, int y) {
+        if (overlayCells.length > 0) {
+            int index = Arrays.binarySearch(overlayCells, y * width + x);
+            if (index >= 0) {
+                return TILES_BY_ID[overlayTiles[index] & 0xFF];
+            }
+        }
+        return TILES_BY_ID[baseId(x, y) & 0xFF];
+    }
+
+    /**
+     * Та же карта с другим тайлом в клетке. Если тайл совпал с базовым слоем,
+     * клетка просто уходит из наложения.
+     */
+    public TileMap withTile(int x, int y, TileType tile) {
+        int cell = y * width + x;
+        byte id = (byte) tile.getId();
+        byte baseTile = baseId(x, y);
+        int index = Arrays.binarySearch(overlayCells, cell);
+
+        if (index >= 0) {
+            if (overlayTiles[index] == id) return this;
+            if (baseTile == id) {
+                return withoutOverlayEntry(index);
+            }
+            byte[] tiles = overlayTiles.clone();
+            tiles[index] = id;
+            return new TileMap(width, height, chunksX, chunks, overlayCells, tiles);
+        }
+
+        if (baseTile == id) return this;
+
+        int insertAt = -index - 1;
+        int[] cells = new int[overlayCells.length + 1];
+        byte[] tiles = new byte[overlayTiles.length + 1];
+        System.arraycopy(overlayCells, 0, cells, 0, insertAt);
+        System.arraycopy(overlayTiles, 0, tiles, 0, insertAt);
+        cells[insertAt] = cell;
+        tiles[insertAt] = id;
+        System.arraycopy(overlayCells, insertAt, cells, insertAt + 1, overlayCells.length - insertAt);
+        System.arraycopy(overlayTiles, insertAt, tiles, insertAt + 1, overlayTiles.length - insertAt);
+        return new TileMap(width, height, chunksX, chunks, cells, tiles);
+    }
+
+    /**
+     * Вызывает action для номера (y * width + x) каждой клетки с тайлом tile.
+     * Однородные фрагменты из другого тайла пропускаются целиком, без обхода клеток.
+     */
+    public void forEachCell(TileType tile, IntConsumer action) {
+        byte id = (byte) tile.getId();
+        byte[] uniform = UNIFORM_CHUNKS[id & 0xFF];
+
+        for (int chunkIndex = 0; chunkIndex < chunks.length; chunkIndex++) {
+            byte[] chunk = chunks[chunkIndex];
+            if (isUniform(chunk) && chunk != uniform) continue;
+
+            int originX = (chunkIndex % chunksX) << CHUNK_BITS;
+            int originY = (chunkIndex / chunksX) << CHUNK_BITS;
+            int maxX = Math.min(CHUNK_SIZE, width - originX);
+            int maxY = Math.min(CHUNK_SIZE, height - originY);
+            for (int localY = 0; localY < maxY; localY++) {
+                for (int localX = 0; localX < maxX; localX++) {
+                    int x = originX + localX;
+                    int y = originY + localY;
+                    if (chunk[(localY << CHUNK_BITS) | localX] == id && !isOverlaid(y * width + x)) {
+                        action.accept(y * width + x);
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < overlayCells.length; i++) {
+            if (overlayTiles[i] == id) {
+                action.accept(overlayCells[i]);
+            }
+        }
+    }
+
+    /**
+     * Обходит карту по фрагментам (фрагменты построчно, внутри фрагмента - клетки построчно)
+     * и отдает серии одинаковых тайлов. Однородный фрагмент без изменений отдается одной
+     * серией без обхода клеток; наложение перебирается один раз за весь обход.
+     */
+    public void forEachRun(RunConsumer action) {
+        long[] overlay = overlayInChunkOrder();
+        int next = 0;
+
+        for (int chunkIndex = 0; chunkIndex < chunks.length; chunkIndex++) {
+            byte[] chunk = chunks[chunkIndex];
+            int maxX = Math.min(CHUNK_SIZE, width - ((chunkIndex % chunksX) << CHUNK_BITS));
+            int maxY = Math.min(CHUNK_SIZE, height - ((chunkIndex / chunksX) << CHUNK_BITS));
+            boolean overlaid = next < overlay.length && (overlay[next] >>> 20) == chunkIndex;
+            if (isUniform(chunk) && !overlaid) {
+                action.accept(TILES_BY_ID[chunk[0] & 0xFF], maxX * maxY);
+                continue;
+            }
+
+            int run = 0;
+            int runTile = 0;
+            for (int localY = 0; localY < maxY; localY++) {
+                for (int localX = 0; localX < maxX; localX++) {
+                    int local = (localY << CHUNK_BITS) | localX;
+                    int tile = chunk[local] & 0xFF;
+                    if (next < overlay.length && (overlay[next] >>> 8) == (((long) chunkIndex << 12) | local)) {
+                        tile = (int) (overlay[next++] & 0xFF);
+                    }
+                    if (run > 0 && tile != runTile) {
+                        action.accept(TILES_BY_ID[runTile], run);
+                        run = 0;
+                    }
+                    runTile = tile;
+                    run++;
+                }
+            }
+            action.accept(TILES_BY_ID[runTile], run);
+        }
+    }
+
+    // Сколько клеток отличается от базового слоя
+    public int overlaySize() {
+        return overlayCells.length;
+    }
+
+    // Сколько фрагментов хранится отдельным массивом, а не общим однородным
+    public int distinctChunkCount() {
+        int count = 0;
+        for (byte[] chunk : chunks) {
+            if (!isUniform(chunk)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Копия карты в виде двумерного массива [y][x] - для кода, которому нужен старый формат.
+     */
+    public TileType[][] toArray() {
+        TileType[][] tiles = new TileType[height][width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                tiles[y][x] = get(x, y);
+            }
+        }
+        return tiles;
+    }
+
+    private byte baseId(int x, int y) {
+        byte[] chunk = chunks[(y >> CHUNK_BITS) * chunksX + (x >> CHUNK_BITS)];
+        return chunk[((y & CHUNK_MASK) << CHUNK_BITS) | (x & CHUNK_MASK)];
+    }
+
+    private boolean isOverlaid(int cell) {
+        return overlayCells.length > 0 && Arrays.binarySearch(overlayCells, cell) >= 0;
+    }
+
+    // Наложение в порядке обхода forEachRun: (фрагмент << 20) | (клетка во фрагменте << 8) | тайл
+    private long[] overlayInChunkOrder() {
+        if (overlayCells.length == 0) return NO_KEYS;
+
+        long[] keys = new long[overlayCells.length];
+        for (int i = 0; i < keys.length; i++) {
+            int x = overlayCells[i] % width;
+            int y = overlayCells[i] / width;
+            long chunkIndex = (y >> CHUNK_BITS) * chunksX + (x >> CHUNK_BITS);
+            int local = ((y & CHUNK_MASK) << CHUNK_BITS) | (x & CHUNK_MASK);
+            keys[i] = (chunkIndex << 20) | ((long) local << 8) | (overlayTiles[i] & 0xFF);
+        }
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    private static boolean isUniform(byte[] chunk) {
+        return chunk == UNIFORM_CHUNKS[chunk[0] & 0xFF];
+    }
+
+    private TileMap withoutOverlayEntry(int index) {
+        int[] cells = new int[overlayCells.length - 1];
+        byte[] tiles = new byte[overlayTiles.length - 1];
+        System.arraycopy(overlayCells, 0, cells, 0, index);
+        System.arraycopy(overlayTiles, 0, tiles, 0, index);
+        System.arraycopy(overlayCells, index + 1, cells, index, cells.length - index);
+        System.arraycopy(overlayTiles, index + 1, tiles, index, tiles.length - index);
+        return new TileMap(width, height, chunksX, chunks, cells, tiles);
+    }
+
+    public interface RunConsumer {
+        void accept(TileType tile, int length);
+    }
+
+    /**
+     * Сборка базового слоя. Все фрагменты сначала общие однородные из тайла fill;
+     * собственный массив фрагмент получает только при первой записи другого тайла.
+     */
+    public static final class Builder {
+        private final int width;
+        private final int height;
+        private final int chunksX;
+        private final byte[][] chunks;
+
+        private Builder(int width, int height, TileType fill) {
+            this.width = width;
+            this.height = height;
+            this.chunksX = (width + CHUNK_MASK) >> CHUNK_BITS;
+            int chunksY = (height + CHUNK_MASK) >> CHUNK_BITS;
+            this.chunks = new byte[chunksX * chunksY][];
+            Arrays.fill(chunks, UNIFORM_CHUNKS[fill.getId()]);
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public TileType get(int x, int y) {
+            byte[] chunk = chunks[(y >> CHUNK_BITS) * chunksX + (x >> CHUNK_BITS)];
+            return TILES_BY_ID[chunk[((y & CHUNK_MASK) << CHUNK_BITS) | (x & CHUNK_MASK)] & 0xFF];
+        }
+
+        public Builder set(int x, int y, TileType tile) {
+            int chunkIndex = (y >> CHUNK_BITS) * chunksX + (x >> CHUNK_BITS);
+            int local = ((y & CHUNK_MASK) << CHUNK_BITS) | (x & CHUNK_MASK);
+            byte id = (byte) tile.getId();
+            byte[] chunk = chunks[chunkIndex];
+
+            if (chunk[local] == id) return this;
+            if (isUniform(chunk)) {
+                chunk = chunk.clone();
+                chunks[chunkIndex] = chunk;
+            }
+            chunk[local] = id;
+            return this;
+        }
+
+        /**
+         * Готовая карта. Фрагменты, которые после записей снова стали однородными,
+         * заменяются общими, остальные копируются: дальнейшие set в сборщике
+         * уже собранную карту не меняют.
+         */
+        public TileMap build() {
+            byte[][] table = new byte[chunks.length][];
+            for (int chunkIndex = 0; chunkIndex < table.length; chunkIndex++) {
+                byte[] chunk = chunks[chunkIndex];
+                if (isUniform(chunk)) {
+                    table[chunkIndex] = chunk;
+                } else if (isFilledWith(chunkIndex, chunk, chunk[0])) {
+                    table[chunkIndex] = UNIFORM_CHUNKS[chunk[0] & 0xFF];
+                } else {
+                    table[chunkIndex] = chunk.clone();
+                }
+            }
+            return new TileMap(width, height, chunksX, table, NO_CELLS, NO_TILES);
+        }
+
+        // Проверяются только клетки внутри карты: у краевых фрагментов часть клеток за ее пределами
+        private boolean isFilledWith(int chunkIndex, byte[] chunk, byte id) {
+            int maxX = Math.min(CHUNK_SIZE, width - ((chunkIndex % chunksX) << CHUNK_BITS));
+            int maxY = Math.min(CHUNK_SIZE, height - ((chunkIndex / chunksX) << CHUNK_BITS));
+            for (int localY = 0; localY < maxY; localY++) {
+                for (int localX = 0; localX < maxX; localX++) {
+                    if (chunk[(localY << CHUNK_BITS) | localX] != id) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -17,8 +17,8 @@ public class Trap implements Serializable {
     public long lastDamageTime;          
     public boolean active;               
 
-    private static final long TIMER_INTERVAL = 3000;  
-    private static final long ACTIVE_DURATION = 300;  
+    public static final long TIMER_INTERVAL = 3000;  
+    public static final long ACTIVE_DURATION = 300;  
     public static final long DAMAGE_COOLDOWN = 1000;  
 
     public Trap() {
@@ -0,0 +1,56 @@
+package ru.kpfu.itis.protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Готовый к отправке кадр протокола: заголовок, тип, длина и данные в одном буфере.
+ * Кадр неизменяемый, поэтому при рассылке его кодируют один раз и пишут всем клиентам.
+ */
+public final class EncodedFrame {
+    private final byte type;
+    private final byte[] bytes;
+    private volatile EncodedFrame compressed;
+
+    EncodedFrame(byte type, byte[] bytes) {
+        this.type = type;
+        this.bytes = bytes;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public int size() {
+        return bytes.length;
+    }
+
+    public int payloadSize() {
+        return bytes.length - GameProtocol.FRAME_OVERHEAD;
+    }
+
+    /**
+     * Сжатый вариант кадра для клиентов, согласовавших сжатие. Считается один раз на кадр.
+     */
+    public EncodedFrame compressed() {
+        EncodedFrame result = compressed;
+        if (result == null) {
+            result = GameProtocol.compressFrame(this);
+            compressed = result;
+        }
+        return result;
+    }
+
+    byte[] bytes() {
+        return bytes;
+    }
+
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    public void writeTo(OutputStream outputStream) throws IOException {
+        outputStream.write(bytes);
+    }
+}
@@ -0,0 +1,198 @@
+package ru.kpfu.itis.protocol;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Потоковый разбор кадров протокола на одном переиспользуемом буфере.
+ * Одно чтение из сокета может дать сразу несколько кадров; данные кадра отдаются
+ * как view на буфер и действительны только до следующего вызова readMessage/nextFrame/feed.
+ * Буфер сдвигается к началу только когда хвост упирается в конец, поэтому данные
+ * каждого кадра всегда лежат непрерывно. Сжатые кадры (FLAG_COMPRESSED) распаковываются
+ * в отдельный переиспользуемый буфер.
+ */
+public class FrameDecoder {
+    private static final Logger logger = LoggerFactory.getLogger(FrameDecoder.class);
+
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    private byte[] buffer;
+    private int start = 0;
+    private int end = 0;
+    private byte[] inflated;
+    private Inflater inflater;
+
+    public FrameDecoder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public FrameDecoder(int capacity) {
+        this.buffer = new byte[capacity];
+    }
+
+    /**
+     * Блокирующее чтение следующего кадра. Возвращает null, если поток закрыт между кадрами.
+     */
+    public GameMessage readMessage(InputStream inputStream) throws IOException {
+        if (inputStream == null) {
+            throw new ProtocolException("InputStream равен null");
+        }
+
+        while (true) {
+            GameMessage message = nextFrame();
+            if (message != null) {
+                return message;
+            }
+
+            int read = inputStream.read(buffer, end, prepareForWrite());
+            if (read == -1) {
+                if (start == end) {
+                    return null;
+                }
+                throw new EOFException("Неожиданный конец потока");
+            }
+            end += read;
+        }
+    }
+
+    /**
+     * Добавляет прочитанные байты (например, из SocketChannel) для последующего nextFrame().
+     */
+    public void feed(ByteBuffer source) throws ProtocolException {
+        while (source.hasRemaining()) {
+            int chunk = Math.min(source.remaining(), prepareForWrite());
+            source.get(buffer, end, chunk);
+            end += chunk;
+        }
+    }
+
+    /**
+     * Разбирает следующий полностью полученный кадр или возвращает null, если данных пока мало.
+     */
+    public GameMessage nextFrame() throws ProtocolException {
+        skipToHeader();
+
+        int available = end - start;
+        if (available < GameProtocol.FRAME_OVERHEAD) {
+            return null;
+        }
+
+        byte type = buffer[start + GameProtocol.HEADER_SIZE];
+        int dataLength = ByteBuffer.wrap(buffer, start + GameProtocol.HEADER_SIZE + GameProtocol.TYPE_SIZE,
+                GameProtocol.LENGTH_SIZE).getInt();
+
+        if (dataLength < 0 || dataLength > GameProtocol.MAX_MESSAGE_SIZE) {
+            throw new ProtocolException("Недопустимая длина сообщения: " + dataLength);
+        }
+
+        if (available < GameProtocol.FRAME_OVERHEAD + dataLength) {
+            ensureCapacity(GameProtocol.FRAME_OVERHEAD + dataLength);
+            return null;
+        }
+
+        int dataOffset = start + GameProtocol.FRAME_OVERHEAD;
+        start = dataOffset + dataLength;
+        if (start == end) {
+            start = 0;
+            end = 0;
+        }
+
+        if ((type & GameProtocol.FLAG_COMPRESSED) != 0) {
+            return inflate((byte) (type & GameProtocol.TYPE_MASK), dataOffset, dataLength);
+        }
+        return new GameMessage(type, buffer, dataOffset, dataLength);
+    }
+
+    private GameMessage inflate(byte type, int offset, int length) throws ProtocolException {
+        if (length < GameProtocol.LENGTH_SIZE) {
+            throw new ProtocolException("Повреждённый сжатый кадр");
+        }
+        int rawLength = ByteBuffer.wrap(buffer, offset, GameProtocol.LENGTH_SIZE).getInt();
+        if (rawLength < 0 || rawLength > GameProtocol.MAX_MESSAGE_SIZE) {
+            throw new ProtocolException("Недопустимая длина сжатого сообщения: " + rawLength);
+        }
+
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        if (inflated == null || inflated.length < rawLength) {
+            inflated = new byte[Math.max(rawLength, DEFAULT_CAPACITY)];
+        }
+
+        inflater.reset();
+        inflater.setInput(buffer, offset + GameProtocol.LENGTH_SIZE, length - GameProtocol.LENGTH_SIZE);
+        int produced = 0;
+        try {
+            while (produced < rawLength && !inflater.finished()) {
+                int count = inflater.inflate(inflated, produced, rawLength - produced);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                produced += count;
+            }
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Повреждённые сжатые данные", e);
+        }
+        if (produced != rawLength) {
+            throw new ProtocolException("Повреждённые сжатые данные: ожидалось " + rawLength + " байт, получено " + produced);
+        }
+
+        return new GameMessage(type, inflated, 0, rawLength);
+    }
+
+    private void skipToHeader() {
+        int skipped = 0;
+        while (end - start >= GameProtocol.HEADER_SIZE
+                && (buffer[start] != GameProtocol.PROTOCOL_HEADER[0]
+                || buffer[start + 1] != GameProtocol.PROTOCOL_HEADER[1])) {
+            start++;
+            skipped++;
+        }
+        if (skipped > 0) {
+            logger.warn("Неверный заголовок протокола, пропущено байт: {}", skipped);
+        }
+    }
+
+    private int prepareForWrite() throws ProtocolException {
+        if (end == buffer.length) {
+            if (start > 0) {
+                compact();
+            } else {
+                ensureCapacity(buffer.length * 2);
+            }
+        }
+        return buffer.length - end;
+    }
+
+    private void ensureCapacity(int frameSize) throws ProtocolException {
+        if (frameSize > GameProtocol.MAX_MESSAGE_SIZE + GameProtocol.FRAME_OVERHEAD) {
+            throw new ProtocolException("Сообщение слишком большое");
+        }
+        if (buffer.length - start >= frameSize) {
+            return;
+        }
+        if (buffer.length >= frameSize) {
+            compact();
+            return;
+        }
+
+        byte[] larger = new byte[Math.max(frameSize, buffer.length * 2)];
+        System.arraycopy(buffer, start, larger, 0, end - start);
+        end -= start;
+        start = 0;
+        buffer = larger;
+    }
+
+    private void compact() {
+        System.arraycopy(buffer, start, buffer, 0, end - start);
+        end -= start;
+        start = 0;
+    }
+}
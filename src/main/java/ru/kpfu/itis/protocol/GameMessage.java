@@ -1,12 +1,27 @@
 package ru.kpfu.itis.protocol;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 public class GameMessage {
     private final byte type;
     private final byte[] data;
+    private final int offset;
+    private final int length;
 
     public GameMessage(byte type, byte[] data) {
         this.type = type;
         this.data = data;
+        this.offset = 0;
+        this.length = data != null ? data.length : 0;
+    }
+
+    // Сообщение-view на буфер FrameDecoder: данные действительны до следующего чтения из того же декодера
+    GameMessage(byte type, byte[] buffer, int offset, int length) {
+        this.type = type;
+        this.data = buffer;
+        this.offset = offset;
+        this.length = length;
     }
 
     public byte getType() {
@@ -14,6 +29,20 @@ public class GameMessage {
     }
 
     public byte[] getData() {
+        if (offset != 0 || (data != null && data.length != length)) {
+            return Arrays.copyOfRange(data, offset, offset + length);
+        }
         return data;
     }
+
+    public ByteBuffer payload() {
+        if (data == null) {
+            return ByteBuffer.allocate(0);
+        }
+        return ByteBuffer.wrap(data, offset, length).slice();
+    }
+
+    public int getLength() {
+        return length;
+    }
 }
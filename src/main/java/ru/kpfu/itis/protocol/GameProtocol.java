@@ -1,10 +1,22 @@
 package ru.kpfu.itis.protocol;
 
 import ru.kpfu.itis.common.Direction;
+import ru.kpfu.itis.common.GameConstants;
+import ru.kpfu.itis.common.GameEvent;
+import ru.kpfu.itis.common.TileMap;
+import ru.kpfu.itis.common.TileType;
+import ru.kpfu.itis.server.GameWorld;
 
 import java.io.*;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
 
 public class GameProtocol {
 
@@ -13,6 +25,16 @@ public class GameProtocol {
     public static final int TYPE_SIZE = 1; 
     public static final int LENGTH_SIZE = 4; 
     public static final int MAX_MESSAGE_SIZE = 10 * 1024 * 1024; 
+    public static final int FRAME_OVERHEAD = HEADER_SIZE + TYPE_SIZE + LENGTH_SIZE;
+
+    // Старший бит байта типа: данные кадра сжаты Deflater, перед ними int исходной длины
+    public static final byte FLAG_COMPRESSED = (byte) 0x80;
+    public static final byte TYPE_MASK = 0x7F;
+    public static final int COMPRESSION_THRESHOLD = 512;
+    public static final String CAPABILITY_DEFLATE = "deflate";
+
+    private static final ThreadLocal<Deflater> DEFLATER =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
 
     public static final byte TYPE_CONNECT = 0x01;        
     public static final byte TYPE_GAME_STATE = 0x02;     
@@ -24,6 +46,17 @@ public class GameProtocol {
     public static final byte TYPE_PLAYER_LIST = 0x08;    
     public static final byte TYPE_HEARTBEAT = 0x09;      
     public static final byte TYPE_ERROR = 0x0A;          
+    public static final byte TYPE_PLAYER_INFO = 0x0B;    
+    public static final byte TYPE_GAME_STATE_DELTA = 0x0C;
+    public static final byte TYPE_STATE_ACK = 0x0D;      
+    public static final byte TYPE_TILE_CHANGE = 0x0E;    
+    public static final byte TYPE_MAP_REQUEST = 0x0F;    
+    public static final byte TYPE_BATCH = 0x10;          
+    public static final byte TYPE_EVENT = 0x11;          
+    public static final byte TYPE_ROOM_LIST = 0x12;      
+    public static final byte TYPE_ROOM_CREATE = 0x13;    
+    public static final byte TYPE_ROOM_JOIN = 0x14;      
+    public static final byte TYPE_VISIBILITY = 0x15;
 
     public static final byte DIRECTION_UP = 0x01;
     public static final byte DIRECTION_DOWN = 0x02;
@@ -33,140 +66,111 @@ public class GameProtocol {
     public static final byte ERROR_INVALID_MESSAGE = 0x01;
     public static final byte ERROR_SERVER_FULL = 0x02;
     public static final byte ERROR_INVALID_PLAYER_ID = 0x03;
+    public static final byte ERROR_ROOM_NOT_FOUND = 0x04;
+    public static final byte ERROR_ROOM_FULL = 0x05;
 
-    public static GameMessage readMessage(InputStream inputStream) throws IOException, ProtocolException {
-        if (inputStream == null) {
-            throw new ProtocolException("InputStream равен null");
-        }
+    public static final int MAX_ROOM_NAME_LENGTH = 32;
 
-        try {
+    public static void writeMessage(OutputStream outputStream, GameMessage message)
+            throws IOException, ProtocolException {
+        writeFrame(outputStream, encodeFrame(message));
+        outputStream.flush();
+    }
 
-            byte[] header = readFully(inputStream, HEADER_SIZE);
-            if (header == null) {
-                return null; 
-            }
+    public static EncodedFrame encodeFrame(GameMessage message) throws ProtocolException {
+        byte[] data = message.getData();
+        int dataLength = data != null ? data.length : 0;
 
-            if (!Arrays.equals(header, PROTOCOL_HEADER)) {
-
-                int available = inputStream.available();
-                if (available > 0) {
-                    inputStream.skip(1);
-
-                    byte[] retryHeader = readFully(inputStream, HEADER_SIZE);
-                    if (retryHeader != null && Arrays.equals(retryHeader, PROTOCOL_HEADER)) {
-                        header = retryHeader;
-                    } else {
-                        throw new ProtocolException("Неверный заголовок протокола");
-                    }
-                } else {
-                    throw new ProtocolException("Неверный заголовок протокола");
-                }
-            }
+        if (dataLength > MAX_MESSAGE_SIZE) {
+            throw new ProtocolException("Сообщение слишком большое");
+        }
 
-            byte[] typeBytes = readFully(inputStream, TYPE_SIZE);
-            if (typeBytes == null) {
-                throw new ProtocolException("Не удалось прочитать тип сообщения");
-            }
-            byte type = typeBytes[0];
+        byte[] frame = new byte[FRAME_OVERHEAD + dataLength];
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        buffer.put(PROTOCOL_HEADER);
+        buffer.put(message.getType());
+        buffer.putInt(dataLength);
+        if (dataLength > 0) {
+            buffer.put(data);
+        }
 
-            byte[] lengthBytes = readFully(inputStream, LENGTH_SIZE);
-            if (lengthBytes == null) {
-                throw new ProtocolException("Не удалось прочитать длину сообщения");
-            }
+        return new EncodedFrame(message.getType(), frame);
+    }
 
-            int dataLength = ByteBuffer.wrap(lengthBytes).getInt();
+    /**
+     * Сжатый вариант кадра. Возвращает исходный кадр, если данные меньше порога
+     * или после сжатия не стали короче.
+     */
+    static EncodedFrame compressFrame(EncodedFrame frame) {
+        int payloadSize = frame.payloadSize();
+        if (payloadSize < COMPRESSION_THRESHOLD) {
+            return frame;
+        }
 
-            if (dataLength < 0 || dataLength > MAX_MESSAGE_SIZE) {
-                throw new ProtocolException("Недопустимая длина сообщения: " + dataLength);
-            }
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(frame.bytes(), FRAME_OVERHEAD, payloadSize);
+        deflater.finish();
 
-            byte[] data;
-            if (dataLength == 0) {
-                data = new byte[0];
-            } else {
-                data = readFully(inputStream, dataLength);
-                if (data == null) {
-                    throw new ProtocolException("Не удалось прочитать данные сообщения");
-                }
+        byte[] compressed = new byte[frame.size()];
+        int position = FRAME_OVERHEAD + LENGTH_SIZE;
+        while (!deflater.finished()) {
+            if (position == compressed.length) {
+                return frame;
             }
+            position += deflater.deflate(compressed, position, compressed.length - position);
+        }
 
-            return new GameMessage(type, data);
+        ByteBuffer buffer = ByteBuffer.wrap(compressed);
+        buffer.put(PROTOCOL_HEADER);
+        buffer.put((byte) (frame.getType() | FLAG_COMPRESSED));
+        buffer.putInt(position - FRAME_OVERHEAD);
+        buffer.putInt(payloadSize);
 
-        } catch (IOException e) {
-            throw new ProtocolException("Ошибка чтения сообщения: " + e.getMessage(), e);
-        }
+        return new EncodedFrame(frame.getType(), Arrays.copyOf(compressed, position));
     }
 
-    private static byte[] readFully(InputStream in, int length) throws IOException {
-        if (length <= 0) {
-            return new byte[0];
+    /**
+     * Склеивает готовые кадры в один кадр TYPE_BATCH. Вложенные сообщения хранятся
+     * как (тип, длина, данные) - тот же кадр, только без магических байтов.
+     */
+    public static EncodedFrame encodeBatch(List<EncodedFrame> frames) throws ProtocolException {
+        int dataLength = 0;
+        for (EncodedFrame frame : frames) {
+            dataLength += frame.size() - HEADER_SIZE;
         }
 
-        byte[] buffer = new byte[length];
-        int totalRead = 0;
-        int read;
+        if (dataLength > MAX_MESSAGE_SIZE) {
+            throw new ProtocolException("Пакет сообщений слишком большой");
+        }
 
-        while (totalRead < length) {
-            read = in.read(buffer, totalRead, length - totalRead);
-            if (read == -1) {
-                if (totalRead == 0) {
-                    return null; 
-                } else {
-                    throw new IOException("Неожиданный конец потока");
-                }
-            }
-            totalRead += read;
-
-            if (totalRead < length && in.available() == 0) {
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    throw new IOException("Поток прерван во время чтения", e);
-                }
-            }
+        byte[] batch = new byte[FRAME_OVERHEAD + dataLength];
+        ByteBuffer buffer = ByteBuffer.wrap(batch);
+        buffer.put(PROTOCOL_HEADER);
+        buffer.put(TYPE_BATCH);
+        buffer.putInt(dataLength);
+        for (EncodedFrame frame : frames) {
+            buffer.put(frame.bytes(), HEADER_SIZE, frame.size() - HEADER_SIZE);
         }
 
-        return buffer;
+        return new EncodedFrame(TYPE_BATCH, batch);
     }
 
-    public static void writeMessage(OutputStream outputStream, GameMessage message)
+    public static void writeFrame(OutputStream outputStream, EncodedFrame frame)
             throws IOException, ProtocolException {
         if (outputStream == null) {
             throw new ProtocolException("OutputStream равен null");
         }
 
         try {
-            byte[] data = message.getData();
-            int dataLength = data != null ? data.length : 0;
-
-            if (dataLength > MAX_MESSAGE_SIZE) {
-                throw new ProtocolException("Сообщение слишком большое");
-            }
-
-            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + TYPE_SIZE + LENGTH_SIZE + dataLength);
-
-            buffer.put(PROTOCOL_HEADER);
-
-            buffer.put(message.getType());
-
-            buffer.putInt(dataLength);
-
-            if (dataLength > 0) {
-                buffer.put(data);
-            }
-
-            byte[] fullMessage = buffer.array();
-            outputStream.write(fullMessage);
-            outputStream.flush();
-
+            frame.writeTo(outputStream);
         } catch (IOException e) {
             throw new ProtocolException("Ошибка записи сообщения: " + e.getMessage(), e);
         }
     }
 
-    public static GameMessage createConnectMessage(String username, String characterType) {
-        String data = username + "|" + characterType;
+    public static GameMessage createConnectMessage(String username, String characterType, boolean compression) {
+        String data = username + "|" + characterType + (compression ? "|" + CAPABILITY_DEFLATE : "");
         return new GameMessage(TYPE_CONNECT, data.getBytes());
     }
 
@@ -187,17 +191,147 @@ public class GameProtocol {
         return new GameMessage(TYPE_ACTION, data.getBytes());
     }
 
-    public static GameMessage createLevelUpdateMessage(int playerId, String text) {
-        String data = playerId + "|" + text;
-        return new GameMessage(TYPE_LEVEL_UPDATE, data.getBytes());
+    public static GameMessage createEventMessage(GameEvent event) {
+        int argCount = event.getArgCount();
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + 1 + argCount * 2);
+        buffer.put((byte) event.code);
+        buffer.putInt(event.playerId);
+        buffer.put((byte) argCount);
+        for (int i = 0; i < argCount; i++) {
+            buffer.putShort((short) event.getArg(i));
+        }
+        return new GameMessage(TYPE_EVENT, buffer.array());
+    }
+
+    public static GameMessage createLevelUpdateMessage(int level, int mapVersion, TileMap map, boolean hideDiamonds) {
+        byte[] encodedMap = GameStateCodec.encodeMap(map, hideDiamonds);
+        ByteBuffer buffer = ByteBuffer.allocate(2 + 4 + encodedMap.length);
+        buffer.putShort((short) level);
+        buffer.putInt(mapVersion);
+        buffer.put(encodedMap);
+        return new GameMessage(TYPE_LEVEL_UPDATE, buffer.array());
     }
 
-    public static GameMessage createGameStateMessage(Object gameState) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ObjectOutputStream oos = new ObjectOutputStream(baos);
-        oos.writeObject(gameState);
-        oos.flush();
-        return new GameMessage(TYPE_GAME_STATE, baos.toByteArray());
+    public static GameMessage createTileChangeMessage(int mapVersion, int x, int y, TileType tile) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 2 + 2 + 1);
+        buffer.putInt(mapVersion);
+        buffer.putShort((short) x);
+        buffer.putShort((short) y);
+        buffer.put((byte) tile.getId());
+        return new GameMessage(TYPE_TILE_CHANGE, buffer.array());
+    }
+
+    /**
+     * Поле зрения игрока: радиус, биты видимых клеток квадрата (2 * radius + 1) построчно,
+     * начиная с (x - radius, y - radius) относительно игрока, и видимые алмазы.
+     * Центр не передается - клиент берет позицию своего игрока из снимка, поэтому сообщение
+     * шлется, только когда изменилась битовая карта или набор видимых алмазов.
+     * Алмазы - номера клеток (y * mapWidth + x), в сообщении - пары координат.
+     */
+    public static GameMessage createVisibilityMessage(int radius, BitSet cells, int[] diamonds, int mapWidth) {
+        byte[] bits = cells.toByteArray();
+        ByteBuffer buffer = ByteBuffer.allocate(2 + 4 + bits.length + 2 + 4 * diamonds.length);
+        buffer.putShort((short) radius);
+        buffer.putInt(bits.length);
+        buffer.put(bits);
+        buffer.putShort((short) diamonds.length);
+        for (int cell : diamonds) {
+            buffer.putShort((short) (cell % mapWidth));
+            buffer.putShort((short) (cell / mapWidth));
+        }
+        return new GameMessage(TYPE_VISIBILITY, buffer.array());
+    }
+
+    public static GameMessage createMapRequestMessage() {
+        return new GameMessage(TYPE_MAP_REQUEST, new byte[0]);
+    }
+
+    public static GameMessage createGameStateMessage(GameWorld.GameState gameState, int tick) {
+        return createGameStateMessage(GameStateCodec.encode(gameState, tick));
+    }
+
+    public static GameMessage createGameStateMessage(byte[] snapshot) {
+        return new GameMessage(TYPE_GAME_STATE, snapshot);
+    }
+
+    public static GameMessage createGameStateDeltaMessage(byte[] delta) {
+        return new GameMessage(TYPE_GAME_STATE_DELTA, delta);
+    }
+
+    public static GameMessage createStateAckMessage(int tick) {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        buffer.putInt(tick);
+        return new GameMessage(TYPE_STATE_ACK, buffer.array());
+    }
+
+    public static GameMessage createPlayerInfoMessage(int playerId, String name, String characterType) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] characterBytes = characterType.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 2 + nameBytes.length + 2 + characterBytes.length);
+        buffer.putInt(playerId);
+        buffer.putShort((short) nameBytes.length);
+        buffer.put(nameBytes);
+        buffer.putShort((short) characterBytes.length);
+        buffer.put(characterBytes);
+        return new GameMessage(TYPE_PLAYER_INFO, buffer.array());
+    }
+
+    /**
+     * Запрос списка комнат от клиента - пустое сообщение TYPE_ROOM_LIST.
+     */
+    public static GameMessage createRoomListRequestMessage() {
+        return new GameMessage(TYPE_ROOM_LIST, new byte[0]);
+    }
+
+    public static GameMessage createRoomListMessage(List<RoomInfoData> rooms) {
+        List<byte[]> names = new ArrayList<>(rooms.size());
+        int size = 2;
+        for (RoomInfoData room : rooms) {
+            byte[] nameBytes = room.name.getBytes(StandardCharsets.UTF_8);
+            names.add(nameBytes);
+            size += roomInfoSize(nameBytes);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putShort((short) rooms.size());
+        for (int i = 0; i < rooms.size(); i++) {
+            putRoomInfo(buffer, rooms.get(i), names.get(i));
+        }
+        return new GameMessage(TYPE_ROOM_LIST, buffer.array());
+    }
+
+    public static GameMessage createRoomCreateMessage(String name) {
+        return new GameMessage(TYPE_ROOM_CREATE, name.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static GameMessage createRoomJoinMessage(int roomId) {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        buffer.putInt(roomId);
+        return new GameMessage(TYPE_ROOM_JOIN, buffer.array());
+    }
+
+    /**
+     * Подтверждение сервера о входе в комнату: тот же тип TYPE_ROOM_JOIN,
+     * но вместо номера комнаты - её полное описание.
+     */
+    public static GameMessage createRoomJoinedMessage(RoomInfoData room) {
+        byte[] nameBytes = room.name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(roomInfoSize(nameBytes));
+        putRoomInfo(buffer, room, nameBytes);
+        return new GameMessage(TYPE_ROOM_JOIN, buffer.array());
+    }
+
+    private static int roomInfoSize(byte[] nameBytes) {
+        return 4 + 2 + nameBytes.length + 1 + 1 + 2;
+    }
+
+    private static void putRoomInfo(ByteBuffer buffer, RoomInfoData room, byte[] nameBytes) {
+        buffer.putInt(room.roomId);
+        buffer.putShort((short) nameBytes.length);
+        buffer.put(nameBytes);
+        buffer.put((byte) room.players);
+        buffer.put((byte) room.capacity);
+        buffer.putShort((short) room.level);
     }
 
     public static GameMessage createPlayerListMessage(String playerListInfo) {
@@ -215,18 +349,107 @@ public class GameProtocol {
         return new GameMessage(TYPE_ERROR, buffer.array());
     }
 
+    public static List<GameMessage> parseBatchMessage(GameMessage message) throws ProtocolException {
+        ByteBuffer buffer = message.payload();
+        List<GameMessage> messages = new ArrayList<>();
+
+        while (buffer.hasRemaining()) {
+            if (buffer.remaining() < TYPE_SIZE + LENGTH_SIZE) {
+                throw new ProtocolException("Обрезанное сообщение в пакете");
+            }
+            byte type = buffer.get();
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                throw new ProtocolException("Недопустимая длина сообщения в пакете: " + length);
+            }
+            if (type == TYPE_BATCH || (type & FLAG_COMPRESSED) != 0) {
+                throw new ProtocolException("Недопустимый тип сообщения в пакете: " + type);
+            }
+
+            messages.add(new GameMessage(type, buffer.array(), buffer.arrayOffset() + buffer.position(), length));
+            buffer.position(buffer.position() + length);
+        }
+
+        return messages;
+    }
+
+    public static List<RoomInfoData> parseRoomListMessage(GameMessage message) throws ProtocolException {
+        ByteBuffer buffer = message.payload();
+        if (buffer.remaining() < 2) {
+            throw new ProtocolException("Обрезанный список комнат");
+        }
+        int count = buffer.getShort() & 0xFFFF;
+        List<RoomInfoData> rooms = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            rooms.add(readRoomInfo(buffer));
+        }
+        return rooms;
+    }
+
+    public static String parseRoomCreateMessage(GameMessage message) {
+        String name = new String(message.getData(), StandardCharsets.UTF_8).trim();
+        return name.length() > MAX_ROOM_NAME_LENGTH ? name.substring(0, MAX_ROOM_NAME_LENGTH) : name;
+    }
+
+    public static int parseRoomJoinMessage(GameMessage message) throws ProtocolException {
+        ByteBuffer buffer = message.payload();
+        if (buffer.remaining() < 4) {
+            throw new ProtocolException("Обрезанный запрос входа в комнату");
+        }
+        return buffer.getInt();
+    }
+
+    public static RoomInfoData parseRoomJoinedMessage(GameMessage message) throws ProtocolException {
+        return readRoomInfo(message.payload());
+    }
+
+    private static RoomInfoData readRoomInfo(ByteBuffer buffer) throws ProtocolException {
+        if (buffer.remaining() < 6) {
+            throw new ProtocolException("Обрезанное описание комнаты");
+        }
+        int roomId = buffer.getInt();
+        int nameLength = buffer.getShort() & 0xFFFF;
+        if (buffer.remaining() < nameLength + 4) {
+            throw new ProtocolException("Обрезанное описание комнаты");
+        }
+        byte[] nameBytes = new byte[nameLength];
+        buffer.get(nameBytes);
+        int players = buffer.get() & 0xFF;
+        int capacity = buffer.get() & 0xFF;
+        int level = buffer.getShort();
+        return new RoomInfoData(roomId, new String(nameBytes, StandardCharsets.UTF_8), players, capacity, level);
+    }
+
     public static String[] parseConnectMessage(GameMessage message) {
         String data = new String(message.getData());
-        return data.split("\\|", 2);
+        return data.split("\\|", 3);
     }
 
     public static MoveData parseMoveMessage(GameMessage message) {
-        ByteBuffer buffer = ByteBuffer.wrap(message.getData());
+        ByteBuffer buffer = message.payload();
         int playerId = buffer.getInt();
         byte direction = buffer.get();
         return new MoveData(playerId, direction);
     }
 
+    public static GameEvent parseEventMessage(GameMessage message) throws ProtocolException {
+        ByteBuffer buffer = message.payload();
+        if (buffer.remaining() < 6) {
+            throw new ProtocolException("Обрезанное игровое событие");
+        }
+        int code = buffer.get() & 0xFF;
+        int playerId = buffer.getInt();
+        int argCount = buffer.get() & 0xFF;
+        if (argCount > GameEvent.MAX_ARGS || buffer.remaining() < argCount * 2) {
+            throw new ProtocolException("Недопустимое число аргументов события: " + argCount);
+        }
+        int[] args = new int[argCount];
+        for (int i = 0; i < argCount; i++) {
+            args[i] = buffer.getShort();
+        }
+        return new GameEvent(code, playerId, args);
+    }
+
     public static MessageData parseTextMessage(GameMessage message) {
         String data = new String(message.getData());
         String[] parts = data.split("\\|", 2);
@@ -235,14 +458,71 @@ public class GameProtocol {
         return new MessageData(playerId, text);
     }
 
-    public static Object parseGameStateMessage(GameMessage message) throws IOException, ClassNotFoundException {
-        ByteArrayInputStream bais = new ByteArrayInputStream(message.getData());
-        ObjectInputStream ois = new ObjectInputStream(bais);
-        return ois.readObject();
+    public static GameWorld.GameState parseGameStateMessage(GameMessage message,
+                                                            Map<Integer, PlayerInfoData> playerInfo,
+                                                            TileType[][] map) throws ProtocolException {
+        return GameStateCodec.decode(message.payload(), playerInfo, map);
+    }
+
+    public static LevelData parseLevelUpdateMessage(GameMessage message) throws ProtocolException {
+        ByteBuffer buffer = message.payload();
+        int level = buffer.getShort();
+        int mapVersion = buffer.getInt();
+        TileType[][] map = GameStateCodec.decodeMap(buffer);
+        return new LevelData(level, mapVersion, map);
+    }
+
+    public static TileChangeData parseTileChangeMessage(GameMessage message) {
+        ByteBuffer buffer = message.payload();
+        int mapVersion = buffer.getInt();
+        int x = buffer.getShort();
+        int y = buffer.getShort();
+        TileType tile = GameStateCodec.tileById(buffer.get());
+        return new TileChangeData(mapVersion, x, y, tile);
+    }
+
+    public static VisibilityData parseVisibilityMessage(GameMessage message) throws ProtocolException {
+        ByteBuffer buffer = message.payload();
+        try {
+            int radius = buffer.getShort() & 0xFFFF;
+            if (radius > GameConstants.MAX_VIEW_RADIUS) {
+                throw new ProtocolException("Слишком большой радиус поля зрения: " + radius);
+            }
+            int bitsLength = buffer.getInt();
+            if (bitsLength < 0 || bitsLength > buffer.remaining()) {
+                throw new ProtocolException("Обрезанное поле зрения");
+            }
+            BitSet cells = BitSet.valueOf(buffer.slice(buffer.position(), bitsLength));
+            buffer.position(buffer.position() + bitsLength);
+
+            int[] diamonds = new int[2 * (buffer.getShort() & 0xFFFF)];
+            for (int i = 0; i < diamonds.length; i++) {
+                diamonds[i] = buffer.getShort();
+            }
+            return new VisibilityData(radius, cells, diamonds);
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Обрезанное поле зрения", e);
+        }
+    }
+
+    public static int parseStateAckMessage(GameMessage message) {
+        return message.payload().getInt();
+    }
+
+    public static PlayerInfoData parsePlayerInfoMessage(GameMessage message) {
+        ByteBuffer buffer = message.payload();
+        int playerId = buffer.getInt();
+        byte[] nameBytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(nameBytes);
+        byte[] characterBytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(characterBytes);
+        return new PlayerInfoData(playerId,
+                new String(nameBytes, StandardCharsets.UTF_8),
+                new String(characterBytes, StandardCharsets.UTF_8));
     }
 
     public static ErrorData parseErrorMessage(GameMessage message) {
-        ByteBuffer buffer = ByteBuffer.wrap(message.getData());
+        ByteBuffer buffer = message.payload();
         byte errorCode = buffer.get();
         byte[] errorBytes = new byte[buffer.remaining()];
         buffer.get(errorBytes);
@@ -290,6 +570,96 @@ public class GameProtocol {
         }
     }
 
+    public static class LevelData {
+        public final int level;
+        public final int mapVersion;
+        public final TileType[][] map;
+
+        public LevelData(int level, int mapVersion, TileType[][] map) {
+            this.level = level;
+            this.mapVersion = mapVersion;
+            this.map = map;
+        }
+    }
+
+    public static class TileChangeData {
+        public final int mapVersion;
+        public final int x;
+        public final int y;
+        public final TileType tile;
+
+        public TileChangeData(int mapVersion, int x, int y, TileType tile) {
+            this.mapVersion = mapVersion;
+            this.x = x;
+            this.y = y;
+            this.tile = tile;
+        }
+    }
+
+    public static class VisibilityData {
+        public final int radius;
+        private final BitSet cells;
+        // Видимые алмазы: пары (x, y) подряд
+        private final int[] diamonds;
+
+        public VisibilityData(int radius, BitSet cells, int[] diamonds) {
+            this.radius = radius;
+            this.cells = cells;
+            this.diamonds = diamonds;
+        }
+
+        public int getDiamondCount() {
+            return diamonds.length / 2;
+        }
+
+        public int getDiamondX(int index) {
+            return diamonds[2 * index];
+        }
+
+        public int getDiamondY(int index) {
+            return diamonds[2 * index + 1];
+        }
+
+        // Видна ли клетка игроку, стоящему в (centerX, centerY)
+        public boolean isVisible(int centerX, int centerY, int cellX, int cellY) {
+            int localX = cellX - centerX + radius;
+            int localY = cellY - centerY + radius;
+            int side = 2 * radius + 1;
+            if (localX < 0 || localX >= side || localY < 0 || localY >= side) {
+                return false;
+            }
+            return cells.get(localY * side + localX);
+        }
+    }
+
+    public static class PlayerInfoData {
+        public final int playerId;
+        public final String name;
+        public final String characterType;
+
+        public PlayerInfoData(int playerId, String name, String characterType) {
+            this.playerId = playerId;
+            this.name = name;
+            this.characterType = characterType;
+        }
+    }
+
+    public static class RoomInfoData {
+        public final int roomId;
+        public final String name;
+        public final int players;
+        public final int capacity;
+        public final int level;
+
+        public RoomInfoData(int roomId, String name, int players, int capacity, int level) {
+            this.roomId = roomId;
+            this.name = name;
+            this.players = players;
+            this.capacity = capacity;
+            this.level = level;
+        }
+    }
+
     public static class ErrorData {
         public final byte errorCode;
         public final String errorMessage;
@@ -0,0 +1,361 @@
+package ru.kpfu.itis.protocol;
+
+import ru.kpfu.itis.common.*;
+import ru.kpfu.itis.server.GameWorld;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Бинарный формат снимка игрового мира.
+ * Сущности передаются записями фиксированной длины. Карта в снимок не входит:
+ * она приходит через TYPE_LEVEL_UPDATE и TYPE_TILE_CHANGE, а снимок несёт только её версию.
+ * Имена игроков тоже не входят (они приходят один раз через TYPE_PLAYER_INFO).
+ */
+public class GameStateCodec {
+
+    public static final int TICK_SIZE = 4;
+    public static final int FIXED_HEADER_SIZE = 2 + 4 + 4 + 4 + 1 + 8 + 8;
+    public static final int PLAYER_RECORD_SIZE = 13;
+    public static final int ENEMY_RECORD_SIZE = 13;
+    public static final int PATROL_RECORD_SIZE = 10;
+    public static final int TRAP_RECORD_SIZE = 13;
+
+    // Порядок секций сущностей в снимке: игроки, враги, патрульные, ловушки.
+    // Каждая запись начинается с id сущности (4 байта): у патрульных и ловушек это номер
+    // в списке уровня. Снимок клиента может содержать не все сущности, поэтому дельта
+    // сопоставляет записи только по id.
+    public static final int[] SECTION_RECORD_SIZES = {
+            PLAYER_RECORD_SIZE, ENEMY_RECORD_SIZE, PATROL_RECORD_SIZE, TRAP_RECORD_SIZE
+    };
+
+    private static final byte FLAG_LEVEL_COMPLETE = 0x01;
+    private static final byte FLAG_LEVEL_TRANSITIONING = 0x02;
+
+    private static final byte FLAG_HAS_KEY = 0x01;
+    private static final byte FLAG_ALIVE = 0x02;
+
+    private static final TileType[] TILES_BY_ID = new TileType[256];
+
+    static {
+        for (int id = 0; id < TILES_BY_ID.length; id++) {
+            TILES_BY_ID[id] = TileType.fromId(id);
+        }
+    }
+
+    public static int encodedSize(GameWorld.GameState state) {
+        return encodedSize(state.players.size(), state.enemies.size(), state.patrolEnemies.size(), state.traps.size());
+    }
+
+    public static int encodedSize(int players, int enemies, int patrolEnemies, int traps) {
+        return TICK_SIZE + FIXED_HEADER_SIZE
+                + 2 + players * PLAYER_RECORD_SIZE
+                + 2 + enemies * ENEMY_RECORD_SIZE
+                + 2 + patrolEnemies * PATROL_RECORD_SIZE
+                + 2 + traps * TRAP_RECORD_SIZE;
+    }
+
+    public static byte[] encode(GameWorld.GameState state, int tick) {
+        ByteBuffer buffer = ByteBuffer.allocate(encodedSize(state));
+        putHeader(buffer, tick, state.currentLevel, state.mapVersion, state.collectedDiamonds, state.totalDiamonds,
+                state.levelComplete, state.isLevelTransitioning, state.levelStartTime, state.levelTransitionStartTime);
+
+        putSectionSize(buffer, state.players.size());
+        for (PlayerState player : state.players) {
+            putPlayer(buffer, player);
+        }
+
+        putSectionSize(buffer, state.enemies.size());
+        for (Enemy enemy : state.enemies) {
+            putEnemy(buffer, enemy.id, enemy.type.id, enemy.x, enemy.y, enemy.health, enemy.direction, enemy.isActive);
+        }
+
+        putSectionSize(buffer, state.patrolEnemies.size());
+        for (int i = 0; i < state.patrolEnemies.size(); i++) {
+            PatrolEnemy patrolEnemy = state.patrolEnemies.get(i);
+            putPatrol(buffer, i, patrolEnemy.x, patrolEnemy.y, patrolEnemy.axis.ordinal(), patrolEnemy.direction.ordinal());
+        }
+
+        putSectionSize(buffer, state.traps.size());
+        for (int i = 0; i < state.traps.size(); i++) {
+            putTrap(buffer, i, state.traps.get(i));
+        }
+
+        return buffer.array();
+    }
+
+    // Запись снимка по частям - для сервера, который хранит сущности не объектами, а массивами.
+    // Порядок вызовов: заголовок, затем секции игроков, врагов, патрульных и ловушек.
+
+    public static void putHeader(ByteBuffer buffer, int tick, int currentLevel, int mapVersion,
+                                 int collectedDiamonds, int totalDiamonds, boolean levelComplete,
+                                 boolean levelTransitioning, long levelStartTime, long levelTransitionStartTime) {
+        byte flags = 0;
+        if (levelComplete) flags |= FLAG_LEVEL_COMPLETE;
+        if (levelTransitioning) flags |= FLAG_LEVEL_TRANSITIONING;
+
+        buffer.putInt(tick);
+        buffer.putShort((short) currentLevel);
+        buffer.putInt(mapVersion);
+        buffer.putInt(collectedDiamonds);
+        buffer.putInt(totalDiamonds);
+        buffer.put(flags);
+        buffer.putLong(levelStartTime);
+        buffer.putLong(levelTransitionStartTime);
+    }
+
+    public static void putSectionSize(ByteBuffer buffer, int count) {
+        buffer.putShort((short) count);
+    }
+
+    public static void putPlayer(ByteBuffer buffer, PlayerState player) {
+        byte playerFlags = 0;
+        if (player.hasKey) playerFlags |= FLAG_HAS_KEY;
+        if (player.isAlive) playerFlags |= FLAG_ALIVE;
+
+        buffer.putInt(player.id);
+        buffer.putShort((short) player.x);
+        buffer.putShort((short) player.y);
+        buffer.put(directionId(player.direction));
+        buffer.put((byte) player.lives);
+        buffer.putShort((short) player.diamonds);
+        buffer.put(playerFlags);
+    }
+
+    public static void putEnemy(ByteBuffer buffer, int id, int typeId, int x, int y, int health,
+                                Direction direction, boolean active) {
+        buffer.putInt(id);
+        buffer.put((byte) typeId);
+        buffer.putShort((short) x);
+        buffer.putShort((short) y);
+        buffer.putShort((short) health);
+        buffer.put(directionId(direction));
+        buffer.put((byte) (active ? 1 : 0));
+    }
+
+    public static void putPatrol(ByteBuffer buffer, int id, int x, int y, int axis, int direction) {
+        buffer.putInt(id);
+        buffer.putShort((short) x);
+        buffer.putShort((short) y);
+        buffer.put((byte) axis);
+        buffer.put((byte) direction);
+    }
+
+    public static void putTrap(ByteBuffer buffer, int id, Trap trap) {
+        buffer.putInt(id);
+        buffer.putShort((short) trap.x);
+        buffer.putShort((short) trap.y);
+        buffer.put((byte) trap.type.ordinal());
+        buffer.put((byte) trap.attack.ordinal());
+        buffer.put(directionId(trap.direction));
+        buffer.put((byte) trap.range);
+        buffer.put((byte) (trap.active ? 1 : 0));
+    }
+
+    public static GameWorld.GameState decode(ByteBuffer buffer, Map<Integer, GameProtocol.PlayerInfoData> playerInfo,
+                                             TileType[][] map) throws ProtocolException {
+        try {
+            buffer.getInt();
+            int currentLevel = buffer.getShort();
+            int mapVersion = buffer.getInt();
+            int collectedDiamonds = buffer.getInt();
+            int totalDiamonds = buffer.getInt();
+            byte flags = buffer.get();
+            long levelStartTime = buffer.getLong();
+            long levelTransitionStartTime = buffer.getLong();
+
+            int playerCount = buffer.getShort() & 0xFFFF;
+            List<PlayerState> players = new ArrayList<>(playerCount);
+            for (int i = 0; i < playerCount; i++) {
+                int id = buffer.getInt();
+                GameProtocol.PlayerInfoData info = playerInfo != null ? playerInfo.get(id) : null;
+                PlayerState player = new PlayerState(id,
+                        info != null ? info.name : "Игрок #" + id,
+                        info != null ? info.characterType : "");
+                player.x = buffer.getShort();
+                player.y = buffer.getShort();
+                player.direction = GameProtocol.byteToDirection(buffer.get());
+                player.lives = buffer.get();
+                player.diamonds = buffer.getShort();
+                byte playerFlags = buffer.get();
+                player.hasKey = (playerFlags & FLAG_HAS_KEY) != 0;
+                player.isAlive = (playerFlags & FLAG_ALIVE) != 0;
+                players.add(player);
+            }
+
+            int enemyCount = buffer.getShort() & 0xFFFF;
+            List<Enemy> enemies = new ArrayList<>(enemyCount);
+            for (int i = 0; i < enemyCount; i++) {
+                int id = buffer.getInt();
+                Enemy.EnemyType type = Enemy.EnemyType.fromId(buffer.get());
+                int x = buffer.getShort();
+                int y = buffer.getShort();
+                Enemy enemy = new Enemy(id, type, x, y);
+                enemy.health = buffer.getShort();
+                enemy.direction = GameProtocol.byteToDirection(buffer.get());
+                enemy.isActive = buffer.get() != 0;
+                enemies.add(enemy);
+            }
+
+            int patrolCount = buffer.getShort() & 0xFFFF;
+            List<PatrolEnemy> patrolEnemies = new ArrayList<>(patrolCount);
+            for (int i = 0; i < patrolCount; i++) {
+                buffer.getInt();
+                int x = buffer.getShort();
+                int y = buffer.getShort();
+                PatrolAxis axis = PatrolAxis.values()[buffer.get()];
+                PatrolDirection direction = PatrolDirection.values()[buffer.get()];
+                patrolEnemies.add(new PatrolEnemy(x, y, axis, direction));
+            }
+
+            int trapCount = buffer.getShort() & 0xFFFF;
+            List<Trap> traps = new ArrayList<>(trapCount);
+            for (int i = 0; i < trapCount; i++) {
+                buffer.getInt();
+                int x = buffer.getShort();
+                int y = buffer.getShort();
+                TrapType type = TrapType.values()[buffer.get()];
+                TrapAttack attack = TrapAttack.values()[buffer.get()];
+                Direction direction = GameProtocol.byteToDirection(buffer.get());
+                Trap trap = new Trap(x, y, type, attack, direction);
+                trap.range = buffer.get();
+                trap.active = buffer.get() != 0;
+                traps.add(trap);
+            }
+
+            return new GameWorld.GameState(
+                    players, enemies, patrolEnemies, traps, map, mapVersion,
+                    collectedDiamonds, totalDiamonds, currentLevel,
+                    (flags & FLAG_LEVEL_COMPLETE) != 0, levelStartTime,
+                    (flags & FLAG_LEVEL_TRANSITIONING) != 0, levelTransitionStartTime
+            );
+        } catch (BufferUnderflowException | ArrayIndexOutOfBoundsException e) {
+            throw new ProtocolException("Повреждённый снимок GameState", e);
+        }
+    }
+
+    public static int readTick(byte[] snapshot) {
+        return ByteBuffer.wrap(snapshot, 0, TICK_SIZE).getInt();
+    }
+
+    public static int readLevel(byte[] snapshot) {
+        return ByteBuffer.wrap(snapshot).getShort(TICK_SIZE);
+    }
+
+    public static int readMapVersion(byte[] snapshot) {
+        return ByteBuffer.wrap(snapshot).getInt(TICK_SIZE + 2);
+    }
+
+    /**
+     * Карта уровня: ширина, высота и пары (длина серии - unsigned short, id тайла).
+     * Клетки идут в порядке обхода TileMap.forEachRun - по фрагментам, поэтому однородный
+     * фрагмент занимает одну пару, а размер сообщения зависит от числа серий, а не клеток.
+     * С hideDiamonds алмазы пишутся полом - игрок узнает о них из своего поля зрения.
+     */
+    public static byte[] encodeMap(TileMap map, boolean hideDiamonds) {
+        MapRuns counter = new MapRuns(null, hideDiamonds);
+        map.forEachRun(counter);
+        counter.finish();
+
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 3 * counter.pairs);
+        buffer.putShort((short) map.getWidth());
+        buffer.putShort((short) map.getHeight());
+        MapRuns writer = new MapRuns(buffer, hideDiamonds);
+        map.forEachRun(writer);
+        writer.finish();
+        return buffer.array();
+    }
+
+    public static TileType[][] decodeMap(ByteBuffer buffer) throws ProtocolException {
+        try {
+            int width = buffer.getShort() & 0xFFFF;
+            int height = buffer.getShort() & 0xFFFF;
+            TileType[][] map = new TileType[height][width];
+
+            int run = 0;
+            TileType tile = null;
+            for (int chunkY = 0; chunkY < height; chunkY += TileMap.CHUNK_SIZE) {
+                for (int chunkX = 0; chunkX < width; chunkX += TileMap.CHUNK_SIZE) {
+                    int maxY = Math.min(chunkY + TileMap.CHUNK_SIZE, height);
+                    int maxX = Math.min(chunkX + TileMap.CHUNK_SIZE, width);
+                    for (int y = chunkY; y < maxY; y++) {
+                        for (int x = chunkX; x < maxX; x++) {
+                            if (run == 0) {
+                                run = buffer.getShort() & 0xFFFF;
+                                tile = tileById(buffer.get());
+                                if (run == 0) {
+                                    throw new ProtocolException("Пустая серия в карте уровня");
+                                }
+                            }
+                            map[y][x] = tile;
+                            run--;
+                        }
+                    }
+                }
+            }
+            return map;
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Повреждённая карта уровня", e);
+        }
+    }
+
+    public static TileType tileById(int id) {
+        return TILES_BY_ID[id & 0xFF];
+    }
+
+    private static byte directionId(Direction direction) {
+        return GameProtocol.directionToByte(direction != null ? direction : Direction.DOWN);
+    }
+
+    // Склеивает соседние серии одного тайла; без буфера только считает пары
+    private static final class MapRuns implements TileMap.RunConsumer {
+        private static final int MAX_RUN = 0xFFFF;
+
+        private final ByteBuffer buffer;
+        private final boolean hideDiamonds;
+        private int pairs = 0;
+        private int run = 0;
+        private TileType runTile;
+
+        MapRuns(ByteBuffer buffer, boolean hideDiamonds) {
+            this.buffer = buffer;
+            this.hideDiamonds = hideDiamonds;
+        }
+
+        @Override
+        public void accept(TileType tile, int length) {
+            if (hideDiamonds && tile == TileType.DIAMOND) {
+                tile = TileType.FLOOR;
+            }
+            if (run > 0 && tile != runTile) {
+                flush();
+            }
+            runTile = tile;
+            run += length;
+            while (run > MAX_RUN) {
+                int rest = run - MAX_RUN;
+                run = MAX_RUN;
+                flush();
+                run = rest;
+            }
+        }
+
+        void finish() {
+            if (run > 0) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            if (buffer != null) {
+                buffer.putShort((short) run);
+                buffer.put((byte) runTile.getId());
+            }
+            pairs++;
+            run = 0;
+        }
+    }
+}
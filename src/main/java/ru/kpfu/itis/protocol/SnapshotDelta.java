@@ -0,0 +1,393 @@
+package ru.kpfu.itis.protocol;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Дельта между двумя бинарными снимками GameStateCodec.
+ * Сравнение идёт по записям фиксированной длины: для изменённой записи передаётся
+ * битовая маска изменённых байтов и только сами эти байты, для новых - запись целиком,
+ * для удалённых - только ключ. Ключ записи - id сущности, поэтому добавленные и удалённые
+ * записи - это и есть сущности, вошедшие в область видимости клиента и покинувшие её.
+ */
+public class SnapshotDelta {
+
+    private static final int HEADER_OFFSET = GameStateCodec.TICK_SIZE;
+    private static final int SECTIONS_OFFSET = HEADER_OFFSET + GameStateCodec.FIXED_HEADER_SIZE;
+    private static final int SECTION_COUNT = GameStateCodec.SECTION_RECORD_SIZES.length;
+
+    /**
+     * Возвращает дельту от baseline к current или null, если снимки не удалось разобрать.
+     */
+    public static byte[] encode(byte[] baseline, byte[] current) {
+        Layout base = Layout.parse(baseline);
+        Layout cur = Layout.parse(current);
+        if (base == null || cur == null) {
+            return null;
+        }
+
+        Writer out = new Writer(64);
+        out.putInt(GameStateCodec.readTick(current));
+        out.putInt(GameStateCodec.readTick(baseline));
+
+        writeRecordDiff(out, baseline, HEADER_OFFSET, current, HEADER_OFFSET, GameStateCodec.FIXED_HEADER_SIZE);
+
+        for (int section = 0; section < SECTION_COUNT; section++) {
+            writeSectionDiff(out, section, baseline, base, current, cur);
+        }
+
+        return out.toByteArray();
+    }
+
+    public static int readTick(ByteBuffer delta) {
+        return delta.getInt(delta.position());
+    }
+
+    public static int readBaseTick(ByteBuffer delta) {
+        return delta.getInt(delta.position() + 4);
+    }
+
+    /**
+     * Восстанавливает полный снимок из baseline и дельты.
+     */
+    public static byte[] apply(byte[] baseline, ByteBuffer delta) throws ProtocolException {
+        Layout base = Layout.parse(baseline);
+        if (base == null) {
+            throw new ProtocolException("Повреждённый базовый снимок");
+        }
+
+        try {
+            int tick = delta.getInt();
+            delta.getInt();
+
+            Writer out = new Writer(baseline.length + 64);
+            out.putInt(tick);
+
+            int headerPos = out.size;
+            out.put(baseline, HEADER_OFFSET, GameStateCodec.FIXED_HEADER_SIZE);
+            delta.position(readRecordDiff(delta, delta.position(), out.data, headerPos, GameStateCodec.FIXED_HEADER_SIZE));
+
+            for (int section = 0; section < SECTION_COUNT; section++) {
+                applySectionDiff(out, delta, section, baseline, base);
+            }
+
+            return out.toByteArray();
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new ProtocolException("Повреждённая дельта GameState", e);
+        }
+    }
+
+    private static void writeSectionDiff(Writer out, int section, byte[] baseline, Layout base,
+                                         byte[] current, Layout cur) {
+        int recordSize = GameStateCodec.SECTION_RECORD_SIZES[section];
+        int baseCount = base.sectionCounts[section];
+        int curCount = cur.sectionCounts[section];
+        int[] baseOrder = base.order(baseline, section);
+        int[] curOrder = cur.order(current, section);
+
+        int removedPos = out.reserveShort();
+        int removed = 0;
+        int i = 0;
+        int j = 0;
+        while (i < baseCount) {
+            int baseKey = readInt(baseline, base.offset(section, baseOrder, i));
+            int curKey = j < curCount ? readInt(current, cur.offset(section, curOrder, j)) : 0;
+            if (j >= curCount || baseKey < curKey) {
+                out.putInt(baseKey);
+                removed++;
+                i++;
+            } else if (baseKey > curKey) {
+                j++;
+            } else {
+                i++;
+                j++;
+            }
+        }
+        out.patchShort(removedPos, removed);
+
+        int changedPos = out.reserveShort();
+        int changed = 0;
+        i = 0;
+        j = 0;
+        while (i < baseCount && j < curCount) {
+            int baseOffset = base.offset(section, baseOrder, i);
+            int curOffset = cur.offset(section, curOrder, j);
+            int baseKey = readInt(baseline, baseOffset);
+            int curKey = readInt(current, curOffset);
+            if (baseKey < curKey) {
+                i++;
+            } else if (baseKey > curKey) {
+                j++;
+            } else {
+                if (!Arrays.equals(baseline, baseOffset, baseOffset + recordSize,
+                        current, curOffset, curOffset + recordSize)) {
+                    out.putInt(curKey);
+                    writeRecordDiff(out, baseline, baseOffset, current, curOffset, recordSize);
+                    changed++;
+                }
+                i++;
+                j++;
+            }
+        }
+        out.patchShort(changedPos, changed);
+
+        int addedPos = out.reserveShort();
+        int added = 0;
+        i = 0;
+        j = 0;
+        while (j < curCount) {
+            int curOffset = cur.offset(section, curOrder, j);
+            int curKey = readInt(current, curOffset);
+            int baseKey = i < baseCount ? readInt(baseline, base.offset(section, baseOrder, i)) : 0;
+            if (i >= baseCount || curKey < baseKey) {
+                out.putInt(curKey);
+                out.put(current, curOffset, recordSize);
+                added++;
+                j++;
+            } else if (curKey > baseKey) {
+                i++;
+            } else {
+                i++;
+                j++;
+            }
+        }
+        out.patchShort(addedPos, added);
+    }
+
+    /**
+     * Секция результата - слияние за один проход: записи baseline по возрастанию ключа
+     * без удаленных, с примененными изменениями, вперемешку с добавленными. Списки удаленных,
+     * измененных и добавленных в дельте тоже идут по возрастанию ключа, поэтому по каждому
+     * достаточно одного курсора. Изменения накладываются прямо на байты результата.
+     */
+    private static void applySectionDiff(Writer out, ByteBuffer delta, int section, byte[] baseline, Layout base) {
+        int recordSize = GameStateCodec.SECTION_RECORD_SIZES[section];
+        int maskSize = (recordSize + 7) / 8;
+        int baseCount = base.sectionCounts[section];
+        int[] baseOrder = base.order(baseline, section);
+
+        // Первый проход только находит границы списков в дельте
+        int removedCount = delta.getShort() & 0xFFFF;
+        int removedPos = delta.position();
+        delta.position(removedPos + removedCount * 4);
+        int changedCount = delta.getShort() & 0xFFFF;
+        int changedPos = delta.position();
+        for (int i = 0; i < changedCount; i++) {
+            int maskPos = delta.position() + 4;
+            int changedBytes = 0;
+            for (int m = 0; m < maskSize; m++) {
+                changedBytes += Integer.bitCount(delta.get(maskPos + m) & 0xFF);
+            }
+            delta.position(maskPos + maskSize + changedBytes);
+        }
+        int addedCount = delta.getShort() & 0xFFFF;
+        int addedPos = delta.position();
+        delta.position(addedPos + addedCount * (4 + recordSize));
+
+        int countPos = out.reserveShort();
+        int count = 0;
+        int removed = 0;
+        int changed = 0;
+        int added = 0;
+        int b = 0;
+        while (b < baseCount || added < addedCount) {
+            if (b < baseCount) {
+                int baseOffset = base.offset(section, baseOrder, b);
+                int baseKey = readInt(baseline, baseOffset);
+                while (removed < removedCount && delta.getInt(removedPos) < baseKey) {
+                    removed++;
+                    removedPos += 4;
+                }
+                if (removed < removedCount && delta.getInt(removedPos) == baseKey) {
+                    removed++;
+                    removedPos += 4;
+                    b++;
+                    continue;
+                }
+
+                int addedKey = added < addedCount ? delta.getInt(addedPos) : 0;
+                if (added >= addedCount || baseKey < addedKey) {
+                    int recordPos = out.size;
+                    out.put(baseline, baseOffset, recordSize);
+                    if (changed < changedCount && delta.getInt(changedPos) == baseKey) {
+                        changedPos = readRecordDiff(delta, changedPos + 4, out.data, recordPos, recordSize);
+                        changed++;
+                    }
+                    count++;
+                    b++;
+                    continue;
+                }
+                if (baseKey == addedKey) {
+                    // Добавленная запись с тем же ключом заменяет базовую
+                    b++;
+                }
+            }
+            out.put(delta, addedPos + 4, recordSize);
+            addedPos += 4 + recordSize;
+            added++;
+            count++;
+        }
+        if (changed < changedCount) {
+            throw new IndexOutOfBoundsException("Изменение неизвестной записи");
+        }
+        out.patchShort(countPos, count);
+    }
+
+    private static void writeRecordDiff(Writer out, byte[] baseline, int baseOffset,
+                                        byte[] current, int curOffset, int length) {
+        int maskPos = out.reserve((length + 7) / 8);
+        for (int i = 0; i < length; i++) {
+            byte value = current[curOffset + i];
+            if (baseline[baseOffset + i] != value) {
+                out.setBit(maskPos, i);
+                out.put(value);
+            }
+        }
+    }
+
+    /**
+     * Накладывает маску и байты из delta с позиции position на record; возвращает позицию
+     * сразу за ними. Позиция самого буфера не меняется.
+     */
+    private static int readRecordDiff(ByteBuffer delta, int position, byte[] record, int offset, int length) {
+        int maskPos = position;
+        position += (length + 7) / 8;
+        for (int i = 0; i < length; i++) {
+            if ((delta.get(maskPos + (i >> 3)) & (1 << (i & 7))) != 0) {
+                record[offset + i] = delta.get(position++);
+            }
+        }
+        return position;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+
+    private static class Layout {
+        final int[] sectionOffsets = new int[SECTION_COUNT];
+        final int[] sectionCounts = new int[SECTION_COUNT];
+
+        static Layout parse(byte[] snapshot) {
+            Layout layout = new Layout();
+
+            int offset = SECTIONS_OFFSET;
+            for (int section = 0; section < SECTION_COUNT; section++) {
+                if (offset + 2 > snapshot.length) return null;
+                int count = ((snapshot[offset] & 0xFF) << 8) | (snapshot[offset + 1] & 0xFF);
+                layout.sectionOffsets[section] = offset + 2;
+                layout.sectionCounts[section] = count;
+                offset += 2 + count * GameStateCodec.SECTION_RECORD_SIZES[section];
+            }
+            return offset <= snapshot.length ? layout : null;
+        }
+
+        /**
+         * Порядок записей секции по возрастанию ключа. GameWorld пишет записи уже
+         * отсортированными - тогда возвращается null и массивы не заводятся; иначе -
+         * смещения записей в порядке ключей.
+         */
+        int[] order(byte[] snapshot, int section) {
+            int count = sectionCounts[section];
+            int recordSize = GameStateCodec.SECTION_RECORD_SIZES[section];
+            int first = sectionOffsets[section];
+
+            boolean sorted = true;
+            for (int i = 1; i < count && sorted; i++) {
+                sorted = readInt(snapshot, first + (i - 1) * recordSize) < readInt(snapshot, first + i * recordSize);
+            }
+            if (sorted) return null;
+
+            long[] keyed = new long[count];
+            for (int i = 0; i < count; i++) {
+                int offset = first + i * recordSize;
+                keyed[i] = ((long) readInt(snapshot, offset) << 32) | offset;
+            }
+            Arrays.sort(keyed);
+            int[] offsets = new int[count];
+            for (int i = 0; i < count; i++) {
+                offsets[i] = (int) keyed[i];
+            }
+            return offsets;
+        }
+
+        // Смещение i-й по порядку ключей записи секции
+        int offset(int section, int[] order, int i) {
+            return order != null ? order[i] : sectionOffsets[section] + i * GameStateCodec.SECTION_RECORD_SIZES[section];
+        }
+    }
+
+    private static class Writer {
+        private byte[] data;
+        private int size;
+
+        Writer(int capacity) {
+            data = new byte[Math.max(16, capacity)];
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, size + extra));
+            }
+        }
+
+        void put(byte value) {
+            ensure(1);
+            data[size++] = value;
+        }
+
+        void put(byte[] source, int offset, int length) {
+            ensure(length);
+            System.arraycopy(source, offset, data, size, length);
+            size += length;
+        }
+
+        // length байт из source с позиции index; позиция source не меняется
+        void put(ByteBuffer source, int index, int length) {
+            ensure(length);
+            source.get(index, data, size, length);
+            size += length;
+        }
+
+        void putShort(int value) {
+            ensure(2);
+            data[size++] = (byte) (value >>> 8);
+            data[size++] = (byte) value;
+        }
+
+        void putInt(int value) {
+            ensure(4);
+            data[size++] = (byte) (value >>> 24);
+            data[size++] = (byte) (value >>> 16);
+            data[size++] = (byte) (value >>> 8);
+            data[size++] = (byte) value;
+        }
+
+        int reserve(int length) {
+            ensure(length);
+            int position = size;
+            Arrays.fill(data, size, size + length, (byte) 0);
+            size += length;
+            return position;
+        }
+
+        int reserveShort() {
+            return reserve(2);
+        }
+
+        void setBit(int position, int bit) {
+            data[position + (bit >> 3)] |= (byte) (1 << (bit & 7));
+        }
+
+        void patchShort(int position, int value) {
+            data[position] = (byte) (value >>> 8);
+            data[position + 1] = (byte) value;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(data, size);
+        }
+    }
+}
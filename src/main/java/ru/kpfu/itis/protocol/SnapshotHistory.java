@@ -0,0 +1,39 @@
+package ru.kpfu.itis.protocol;
+
+/**
+ * Кольцевой буфер последних снимков (tick -> байты полного снимка).
+ * Используется и сервером (отправленные клиенту снимки), и клиентом (полученные снимки).
+ */
+public class SnapshotHistory {
+    public static final int DEFAULT_CAPACITY = 32;
+
+    private final int[] ticks;
+    private final byte[][] snapshots;
+
+    public SnapshotHistory() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public SnapshotHistory(int capacity) {
+        ticks = new int[capacity];
+        snapshots = new byte[capacity][];
+    }
+
+    public void put(int tick, byte[] snapshot) {
+        int slot = Math.floorMod(tick, ticks.length);
+        ticks[slot] = tick;
+        snapshots[slot] = snapshot;
+    }
+
+    public byte[] get(int tick) {
+        if (tick < 0) return null;
+        int slot = Math.floorMod(tick, ticks.length);
+        return ticks[slot] == tick ? snapshots[slot] : null;
+    }
+
+    public void clear() {
+        for (int i = 0; i < snapshots.length; i++) {
+            snapshots[i] = null;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package ru.kpfu.itis.server;
+
+import ru.kpfu.itis.protocol.EncodedFrame;
+import ru.kpfu.itis.protocol.FrameDecoder;
+import ru.kpfu.itis.protocol.GameMessage;
+import ru.kpfu.itis.protocol.GameProtocol;
+import ru.kpfu.itis.protocol.ProtocolException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Классический транспорт: поток на приём подключений и по потоку на каждого клиента.
+ * Потоки либо платформенные из пула, либо виртуальные. Запись защищена ReentrantLock,
+ * а не synchronized: блокирующая запись внутри монитора закрепила бы виртуальный поток
+ * за потоком-носителем.
+ */
+class BlockingTransport implements ServerTransport {
+    private static final Logger logger = LoggerFactory.getLogger(BlockingTransport.class);
+
+    private final GameServer server;
+    private final ServerSocket serverSocket;
+    private final ExecutorService threadPool;
+    private volatile boolean running = false;
+
+    BlockingTransport(GameServer server, int port, boolean virtualThreads) throws IOException {
+        this.server = server;
+        this.threadPool = virtualThreads
+                ? Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("client-", 0).factory())
+                : Executors.newCachedThreadPool();
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(port));
+    }
+
+    @Override
+    public Executor writerExecutor() {
+        return threadPool;
+    }
+
+    @Override
+    public void start() {
+        running = true;
+        threadPool.execute(this::acceptLoop);
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket clientSocket = serverSocket.accept();
+                clientSocket.setTcpNoDelay(true);
+                clientSocket.setSoTimeout(45000);
+
+                SocketConnection connection = new SocketConnection(clientSocket);
+                GameServer.ClientHandler handler = server.openSession(connection);
+                if (handler != null) {
+                    threadPool.execute(() -> connection.readLoop(handler));
+                }
+            } catch (IOException e) {
+                if (running) {
+                    logger.error("Ошибка приема подключения", e);
+                }
+            }
+        }
+        logger.info("Сервер прекратил прием подключений");
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            logger.debug("Ошибка при закрытии серверного сокета", e);
+        }
+        threadPool.shutdown();
+    }
+
+    private static class SocketConnection implements ClientConnection {
+        private final Socket socket;
+        private final OutputStream out;
+        private final InputStream in;
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private final FrameDecoder decoder = new FrameDecoder();
+
+        SocketConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = socket.getOutputStream();
+            this.in = socket.getInputStream();
+        }
+
+        @Override
+        public void send(EncodedFrame frame) throws IOException {
+            writeLock.lock();
+            try {
+                GameProtocol.writeFrame(out, frame);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                if (!socket.isClosed()) {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                logger.debug("Ошибка при закрытии сокета клиента", e);
+            }
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return String.valueOf(socket.getRemoteSocketAddress());
+        }
+
+        void readLoop(GameServer.ClientHandler handler) {
+            int playerId = handler.getPlayerId();
+            logger.info("Начинаем обработку клиента #{}", playerId);
+            try {
+                while (handler.isConnected() && !socket.isClosed()) {
+                    try {
+                        GameMessage message = decoder.readMessage(in);
+                        if (message == null) {
+                            logger.info("Клиент #{} отключился (конец потока)", playerId);
+                            break;
+                        }
+
+                        handler.onMessage(message);
+
+                    } catch (ProtocolException e) {
+                        handler.onProtocolError(e);
+                        break;
+                    } catch (SocketTimeoutException e) {
+                        logger.debug("Таймаут при чтении от клиента #{}", playerId);
+                    } catch (EOFException e) {
+                        logger.info("Клиент #{} отключился (EOF)", playerId);
+                        break;
+                    } catch (IOException e) {
+                        if (!handler.isConnected()) {
+                            break;
+                        }
+                        if (e.getMessage() != null && (e.getMessage().contains("closed") ||
+                                e.getMessage().contains("reset") || e.getMessage().contains("abort"))) {
+                            logger.warn("Соединение с клиентом #{} разорвано", playerId);
+                            break;
+                        }
+                        logger.error("Ошибка чтения от клиента #{}", playerId, e);
+                        break;
+                    }
+                }
+            } finally {
+                handler.connectionLost();
+            }
+        }
+    }
+}
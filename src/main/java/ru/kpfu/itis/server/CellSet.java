@@ -0,0 +1,97 @@
+package ru.kpfu.itis.server;
+
+import ru.kpfu.itis.common.TileMap;
+
+import java.util.function.IntConsumer;
+
+/**
+ * Множество клеток карты, разбитое на фрагменты по 32x32 клетки, как базовый слой TileMap.
+ * Внутри фрагмента - битовая карта из 16 long; фрагмент заводится при первом добавлении
+ * клетки, поэтому память зависит от того, где клетки лежат, а не от площади карты.
+ *
+ * Не потокобезопасно: множеством владеет поток, выполняющий тик мира.
+ */
+class CellSet {
+    private static final int CHUNK_BITS = TileMap.CHUNK_BITS;
+    private static final int CHUNK_MASK = TileMap.CHUNK_SIZE - 1;
+    private static final int WORDS_PER_CHUNK = TileMap.CHUNK_SIZE * TileMap.CHUNK_SIZE / Long.SIZE;
+
+    private int width;
+    private int height;
+    private int chunksX;
+    private long[][] chunks = new long[0][];
+
+    /**
+     * Очищает множество и подгоняет его под размер новой карты.
+     */
+    void reset(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.chunksX = (width + CHUNK_MASK) >> CHUNK_BITS;
+        chunks = new long[chunksX * ((height + CHUNK_MASK) >> CHUNK_BITS)][];
+    }
+
+    void add(int x, int y) {
+        int chunkIndex = chunkIndex(x, y);
+        long[] chunk = chunks[chunkIndex];
+        if (chunk == null) {
+            chunk = new long[WORDS_PER_CHUNK];
+            chunks[chunkIndex] = chunk;
+        }
+        int local = localIndex(x, y);
+        chunk[local >> 6] |= 1L << local;
+    }
+
+    /**
+     * Убирает клетку; false, если ее в множестве не было. Клетки за пределами карты пусты.
+     */
+    boolean remove(int x, int y) {
+        if (x < 0 || x >= width || y < 0 || y >= height) return false;
+
+        long[] chunk = chunks[chunkIndex(x, y)];
+        if (chunk == null) return false;
+
+        int local = localIndex(x, y);
+        long bit = 1L << local;
+        if ((chunk[local >> 6] & bit) == 0) return false;
+        chunk[local >> 6] &= ~bit;
+        return true;
+    }
+
+    /**
+     * Вызывает action для номера (y * width + x) каждой клетки множества в прямоугольнике
+     * [minX, maxX] x [minY, maxY]. Смотрятся только фрагменты под прямоугольником.
+     */
+    void forEachIn(int minX, int minY, int maxX, int maxY, IntConsumer action) {
+        minX = Math.max(minX, 0);
+        minY = Math.max(minY, 0);
+        maxX = Math.min(maxX, width - 1);
+        maxY = Math.min(maxY, height - 1);
+
+        for (int chunkY = minY >> CHUNK_BITS; chunkY <= maxY >> CHUNK_BITS; chunkY++) {
+            for (int chunkX = minX >> CHUNK_BITS; chunkX <= maxX >> CHUNK_BITS; chunkX++) {
+                long[] chunk = chunks[chunkY * chunksX + chunkX];
+                if (chunk == null) continue;
+
+                for (int word = 0; word < chunk.length; word++) {
+                    for (long bits = chunk[word]; bits != 0; bits &= bits - 1) {
+                        int local = (word << 6) | Long.numberOfTrailingZeros(bits);
+                        int x = (chunkX << CHUNK_BITS) | (local & CHUNK_MASK);
+                        int y = (chunkY << CHUNK_BITS) | (local >> CHUNK_BITS);
+                        if (x >= minX && x <= maxX && y >= minY && y <= maxY) {
+                            action.accept(y * width + x);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private int chunkIndex(int x, int y) {
+        return (y >> CHUNK_BITS) * chunksX + (x >> CHUNK_BITS);
+    }
+
+    private static int localIndex(int x, int y) {
+        return ((y & CHUNK_MASK) << CHUNK_BITS) | (x & CHUNK_MASK);
+    }
+}
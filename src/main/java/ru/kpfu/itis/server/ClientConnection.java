@@ -0,0 +1,34 @@
+package ru.kpfu.itis.server;
+
+import ru.kpfu.itis.protocol.EncodedFrame;
+
+import java.io.IOException;
+
+/**
+ * Соединение одного клиента на стороне транспорта. Разбор сообщений и игровая логика
+ * живут в GameServer.ClientHandler, транспорт только доставляет кадры.
+ */
+interface ClientConnection {
+
+    void send(EncodedFrame frame) throws IOException;
+
+    /**
+     * Закрывает соединение. Повторный вызов ничего не делает, обработчик клиента не уведомляется.
+     */
+    void close();
+
+    String getRemoteAddress();
+
+    /**
+     * true, если предыдущие кадры ещё не ушли в сокет и писать дальше бессмысленно.
+     */
+    default boolean isBackedUp() {
+        return false;
+    }
+
+    /**
+     * Слушатель, который вызывается, когда застрявшие кадры наконец отправлены.
+     */
+    default void setWritableListener(Runnable listener) {
+    }
+}
@@ -0,0 +1,65 @@
+package ru.kpfu.itis.server;
+
+import java.util.Arrays;
+
+/**
+ * Враги или патрули уровня в виде структуры массивов: каждое поле - отдельный
+ * примитивный массив, сущность - индекс в этих массивах. Индекс не меняется,
+ * пока не загрузится следующий уровень, поэтому его можно держать в задачах
+ * колеса таймеров и в индексе клеток.
+ *
+ * Смысл type и dir задает владелец: у врагов это id типа и Direction,
+ * у патрулей - PatrolAxis и PatrolDirection.
+ * Массивы открыты для пакета: обходы в игровом цикле читают их напрямую.
+ */
+class EntityStore {
+    private static final int INITIAL_CAPACITY = 16;
+
+    int size = 0;
+    // Номер сущности в протоколе (у врагов - id из файла уровня)
+    int[] id = new int[INITIAL_CAPACITY];
+    int[] x = new int[INITIAL_CAPACITY];
+    int[] y = new int[INITIAL_CAPACITY];
+    int[] hp = new int[INITIAL_CAPACITY];
+    byte[] type = new byte[INITIAL_CAPACITY];
+    byte[] dir = new byte[INITIAL_CAPACITY];
+    boolean[] active = new boolean[INITIAL_CAPACITY];
+    // Откат атаки идет, пока флаг не снимет задача колеса таймеров
+    boolean[] coolingDown = new boolean[INITIAL_CAPACITY];
+    // Дескриптор в OccupancyGrid
+    int[] cell = new int[INITIAL_CAPACITY];
+
+    int add(int entityId, int entityX, int entityY, int health, int entityType, int direction) {
+        if (size == id.length) {
+            grow();
+        }
+        int index = size++;
+        id[index] = entityId;
+        x[index] = entityX;
+        y[index] = entityY;
+        hp[index] = health;
+        type[index] = (byte) entityType;
+        dir[index] = (byte) direction;
+        active[index] = true;
+        coolingDown[index] = false;
+        cell[index] = OccupancyGrid.NONE;
+        return index;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    private void grow() {
+        int capacity = id.length * 2;
+        id = Arrays.copyOf(id, capacity);
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        hp = Arrays.copyOf(hp, capacity);
+        type = Arrays.copyOf(type, capacity);
+        dir = Arrays.copyOf(dir, capacity);
+        active = Arrays.copyOf(active, capacity);
+        coolingDown = Arrays.copyOf(coolingDown, capacity);
+        cell = Arrays.copyOf(cell, capacity);
+    }
+}
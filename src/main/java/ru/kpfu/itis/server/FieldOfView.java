@@ -0,0 +1,160 @@
+package ru.kpfu.itis.server;
+
+import ru.kpfu.itis.common.TileMap;
+import ru.kpfu.itis.common.TileType;
+
+import java.util.BitSet;
+
+/**
+ * Поле зрения одного игрока: какие клетки в круге радиуса radius он видит, если стены
+ * загораживают обзор. Считается рекурсивным теневым литьем (recursive shadowcasting)
+ * по восьми октантам и хранится битовой картой квадрата (2 * radius + 1) клеток вокруг игрока.
+ *
+ * Пересчет ленивый: update ничего не делает, пока игрок стоит на месте и рядом не поменялась
+ * проницаемость клеток. Номер версии растет, только когда изменилась сама битовая карта:
+ * она задана относительно игрока, поэтому шаг по открытому месту версию не меняет.
+ *
+ * Не потокобезопасно: полем зрения владеет поток, выполняющий тик мира.
+ */
+class FieldOfView {
+    // Множители координат для восьми октантов: (xx, xy, yx, yy)
+    private static final int[][] OCTANTS = {
+            {1, 0, 0, 1}, {0, 1, 1, 0}, {0, -1, 1, 0}, {-1, 0, 0, 1},
+            {-1, 0, 0, -1}, {0, -1, -1, 0}, {0, 1, -1, 0}, {1, 0, 0, -1}
+    };
+
+    private final int radius;
+    private final int side;
+    private BitSet visible = new BitSet();
+    private BitSet next = new BitSet();
+    private int originX;
+    private int originY;
+    private boolean valid = false;
+    private int version = 0;
+
+    FieldOfView(int radius) {
+        this.radius = radius;
+        this.side = 2 * radius + 1;
+    }
+
+    static boolean blocksSight(TileType tile) {
+        return tile == TileType.WALL;
+    }
+
+    /**
+     * Пересчитывает поле зрения, если игрок ушел из (originX, originY) или оно было сброшено.
+     */
+    void update(TileMap map, int x, int y) {
+        if (valid && x == originX && y == originY) return;
+
+        next.clear();
+        next.set(localIndex(x, y, x, y));
+        for (int[] octant : OCTANTS) {
+            castLight(map, x, y, 1, 1.0, 0.0, octant[0], octant[1], octant[2], octant[3]);
+        }
+
+        if (!next.equals(visible)) {
+            BitSet previous = visible;
+            visible = next;
+            next = previous;
+            version++;
+        }
+        originX = x;
+        originY = y;
+        valid = true;
+    }
+
+    /**
+     * Клетка (x, y) сменила проницаемость. Поле зрения пересчитается, только если клетка в радиусе.
+     */
+    void invalidate(int x, int y) {
+        if (isWithin(x, y, 0)) {
+            valid = false;
+        }
+    }
+
+    // Карта сменилась целиком (новый уровень)
+    void invalidate() {
+        valid = false;
+    }
+
+    boolean isVisible(int x, int y) {
+        return isWithin(x, y, 0) && visible.get(localIndex(originX, originY, x, y));
+    }
+
+    /**
+     * Лежит ли клетка в квадрате radius + margin вокруг игрока - без учета стен.
+     */
+    boolean isWithin(int x, int y, int margin) {
+        int reach = radius + margin;
+        return Math.abs(x - originX) <= reach && Math.abs(y - originY) <= reach;
+    }
+
+    int getOriginX() {
+        return originX;
+    }
+
+    int getOriginY() {
+        return originY;
+    }
+
+    int getRadius() {
+        return radius;
+    }
+
+    int getVersion() {
+        return version;
+    }
+
+    // Биты по строкам квадрата, начиная с (originX - radius, originY - radius)
+    BitSet cells() {
+        return visible;
+    }
+
+    /**
+     * Освещает строки октанта начиная с row в секторе наклонов [end, start].
+     * Стена сужает сектор: часть за ней досчитывается рекурсивно для следующих строк.
+     */
+    private void castLight(TileMap map, int x, int y, int row, double start, double end,
+                           int xx, int xy, int yx, int yy) {
+        if (start < end) return;
+
+        int radiusSquared = radius * radius;
+        double nextStart = start;
+        for (int distance = row; distance <= radius; distance++) {
+            boolean blocked = false;
+            int dy = -distance;
+            for (int dx = -distance; dx <= 0; dx++) {
+                double leftSlope = (dx - 0.5) / (dy + 0.5);
+                double rightSlope = (dx + 0.5) / (dy - 0.5);
+                if (start < rightSlope) continue;
+                if (end > leftSlope) break;
+
+                int cellX = x + dx * xx + dy * xy;
+                int cellY = y + dx * yx + dy * yy;
+                boolean opaque = !map.contains(cellX, cellY) || blocksSight(map.get(cellX, cellY));
+                if (dx * dx + dy * dy <= radiusSquared && map.contains(cellX, cellY)) {
+                    next.set(localIndex(x, y, cellX, cellY));
+                }
+
+                if (blocked) {
+                    if (opaque) {
+                        nextStart = rightSlope;
+                    } else {
+                        blocked = false;
+                        start = nextStart;
+                    }
+                } else if (opaque && distance < radius) {
+                    blocked = true;
+                    castLight(map, x, y, distance + 1, start, leftSlope, xx, xy, yx, yy);
+                    nextStart = rightSlope;
+                }
+            }
+            if (blocked) break;
+        }
+    }
+
+    private int localIndex(int centerX, int centerY, int x, int y) {
+        return (y - centerY + radius) * side + (x - centerX + radius);
+    }
+}
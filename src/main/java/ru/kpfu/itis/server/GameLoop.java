@@ -0,0 +1,89 @@
+package ru.kpfu.itis.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Игровой цикл с фиксированным шагом. Время тиков отсчитывается по System.nanoTime
+ * от момента старта, а не от конца предыдущего тика, поэтому погрешность не копится.
+ * Если цикл отстал, пропущенные тики выполняются подряд без пауз, но не больше
+ * maxCatchUpTicks: остальные отбрасываются, чтобы после долгой паузы не крутить
+ * симуляцию в ускоренном режиме.
+ */
+class GameLoop implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(GameLoop.class);
+
+    private final long tickNanos;
+    private final int maxCatchUpTicks;
+    private final Runnable tickAction;
+    private final Thread thread;
+    private volatile boolean running = false;
+    private volatile long ticks = 0;
+    private volatile long lateTicks = 0;
+    private volatile long skippedTicks = 0;
+
+    GameLoop(String name, int tickRate, int maxCatchUpTicks, Runnable tickAction) {
+        this.tickNanos = TimeUnit.SECONDS.toNanos(1) / tickRate;
+        this.maxCatchUpTicks = maxCatchUpTicks;
+        this.tickAction = tickAction;
+        this.thread = new Thread(this, name);
+    }
+
+    long getTickNanos() {
+        return tickNanos;
+    }
+
+    void start() {
+        running = true;
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.NANOSECONDS.toMillis(tickNanos) * 10);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        long nextTick = System.nanoTime();
+
+        while (running) {
+            long now = System.nanoTime();
+            if (now < nextTick) {
+                LockSupport.parkNanos(nextTick - now);
+                continue;
+            }
+
+            long behind = (now - nextTick) / tickNanos;
+            if (behind > maxCatchUpTicks) {
+                long skipped = behind - maxCatchUpTicks;
+                skippedTicks += skipped;
+                nextTick += skipped * tickNanos;
+                logger.warn("Игровой цикл отстал на {} тиков, {} пропущено", behind, skipped);
+            }
+            if (behind > 0) {
+                lateTicks++;
+            }
+
+            try {
+                tickAction.run();
+            } catch (Exception e) {
+                logger.error("Ошибка игрового цикла", e);
+            }
+            ticks++;
+            nextTick += tickNanos;
+        }
+    }
+
+    void logStats() {
+        logger.info("Игровой цикл: тиков {}, с опозданием {}, пропущено {}", ticks, lateTicks, skippedTicks);
+    }
+}
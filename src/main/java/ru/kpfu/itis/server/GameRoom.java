@@ -0,0 +1,363 @@
+package ru.kpfu.itis.server;
+
+import ru.kpfu.itis.common.*;
+import ru.kpfu.itis.protocol.EncodedFrame;
+import ru.kpfu.itis.protocol.GameMessage;
+import ru.kpfu.itis.protocol.GameProtocol;
+import ru.kpfu.itis.protocol.GameStateCodec;
+import ru.kpfu.itis.protocol.SnapshotDelta;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Комната - отдельная партия со своим игровым миром, уровнями и составом игроков.
+ * Мир комнаты меняет только поток, выполняющий её тик (RoomScheduler не запускает
+ * два тика одной комнаты одновременно), состав игроков - RoomManager.
+ */
+class GameRoom {
+    private static final Logger logger = LoggerFactory.getLogger(GameRoom.class);
+
+    // Клиент, который столько не может принять накопленные кадры, отключается
+    private static final long OUTBOUND_STALL_TIMEOUT_MS = 5000;
+
+    private final GameServer server;
+    private final int id;
+    private final String name;
+    private final int capacity;
+    private final GameWorld gameWorld;
+    // Радиус области интереса в клетках; 0 - каждый клиент получает все сущности уровня
+    private final int viewRadius;
+    private final Map<Integer, GameServer.ClientHandler> members = new ConcurrentHashMap<>();
+    // Полный снимок мира: пишет тик, остальные потоки читают последний без блокировок
+    private final SnapshotRing snapshots = new SnapshotRing();
+    // Что отправлено игрокам (по id игрока); только для потока тика комнаты
+    private final Map<Integer, Viewer> viewers = new HashMap<>();
+    // Сколько байт снимков разослано за последний тик; читает статистика RoomScheduler
+    private volatile int latestSnapshotBytes = 0;
+    // Статистика тиков для RoomScheduler; пишет только поток, выполняющий тик комнаты
+    private volatile long averageTickNanos = 0;
+    private volatile long maxTickNanos = 0;
+    private volatile long budgetOverruns = 0;
+
+    GameRoom(GameServer server, int id, String name, int capacity, long tickNanos, int viewRadius) {
+        this.server = server;
+        this.id = id;
+        this.name = name;
+        this.capacity = capacity;
+        this.viewRadius = viewRadius;
+
+        gameWorld = new GameWorld(tickNanos);
+        gameWorld.setBroadcastCallback(this::broadcast);
+        gameWorld.setMapListener(new GameWorld.MapListener() {
+            @Override
+            public void onLevelLoaded(int level, int mapVersion, TileMap map) {
+                broadcastProtocolMessage(GameProtocol.createLevelUpdateMessage(level, mapVersion, map, hidesDiamonds()));
+            }
+
+            @Override
+            public void onTileChanged(int mapVersion, int x, int y, TileType tile) {
+                TileType shown = hidesDiamonds() && tile == TileType.DIAMOND ? TileType.FLOOR : tile;
+                broadcastProtocolMessage(GameProtocol.createTileChangeMessage(mapVersion, x, y, shown));
+            }
+        });
+    }
+
+    int getId() {
+        return id;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    int getPlayerCount() {
+        return members.size();
+    }
+
+    boolean isFull() {
+        return members.size() >= capacity;
+    }
+
+    // Можно вызывать из любого потока: уровень берется из последнего опубликованного снимка
+    GameProtocol.RoomInfoData info() {
+        SnapshotRing.Snapshot latest = snapshots.latest();
+        int level = latest != null ? GameStateCodec.readLevel(latest.data) : 1;
+        return new GameProtocol.RoomInfoData(id, name, members.size(), capacity, level);
+    }
+
+    /**
+     * Один шаг комнаты: шаг мира и рассылка состояния.
+     * snapshotTick общий для всех комнат сервера, поэтому номера снимков
+     * не повторяются при переходе игрока между комнатами.
+     */
+    void tick(int snapshotTick) {
+        try {
+            gameWorld.tick();
+
+            byte[] snapshot = snapshots.claim(gameWorld.snapshotSize());
+            gameWorld.writeSnapshot(snapshotTick, snapshot);
+            snapshots.publish();
+
+            broadcastGameState(snapshotTick);
+        } catch (Exception e) {
+            logger.error("Ошибка в игровом цикле комнаты #{}", id, e);
+        }
+    }
+
+    void recordTick(long nanos, long budgetNanos) {
+        // Скользящее среднее с весом 1/8: сглаживает разовые всплески
+        averageTickNanos = averageTickNanos == 0 ? nanos : averageTickNanos + (nanos - averageTickNanos) / 8;
+        maxTickNanos = Math.max(maxTickNanos, nanos);
+        if (nanos > budgetNanos) {
+            budgetOverruns++;
+            logger.debug("Комната #{} превысила бюджет тика: {} мкс", id, nanos / 1000);
+        }
+    }
+
+    long getAverageTickNanos() {
+        return averageTickNanos;
+    }
+
+    long getMaxTickNanos() {
+        return maxTickNanos;
+    }
+
+    long getBudgetOverruns() {
+        return budgetOverruns;
+    }
+
+    // Можно вызывать из любого потока
+    int getLatestSnapshotSize() {
+        return snapshots.latestSize();
+    }
+
+    // Можно вызывать из любого потока
+    int getLatestSnapshotBytes() {
+        return latestSnapshotBytes;
+    }
+
+    /**
+     * Вызывается RoomManager под его блокировкой, свободное место уже проверено.
+     */
+    void addMember(GameServer.ClientHandler handler, int firstTick) {
+        members.put(handler.getPlayerId(), handler);
+        handler.enterRoom(this, firstTick);
+        handler.sendProtocolMessage(GameProtocol.createRoomJoinedMessage(info()));
+        logger.info("Игрок #{} вошел в комнату #{} «{}» ({}/{})",
+                handler.getPlayerId(), id, name, members.size(), capacity);
+        gameWorld.submit(() -> applyJoin(handler));
+    }
+
+    private void applyJoin(GameServer.ClientHandler handler) {
+        int playerId = handler.getPlayerId();
+        // Игрок мог уйти из комнаты, пока команда ждала своего тика
+        if (members.get(playerId) != handler) return;
+
+        gameWorld.addPlayer(playerId, handler.getPlayerName(), handler.getCharacterType());
+        broadcastProtocolMessage(GameProtocol.createPlayerInfoMessage(
+                playerId, handler.getPlayerName(), handler.getCharacterType()));
+        sendKnownPlayers(handler);
+        sendLevelMap(handler);
+        broadcastEvent(new GameEvent(GameEvent.PLAYER_JOINED, playerId));
+        broadcastPlayerList();
+    }
+
+    void removeMember(GameServer.ClientHandler handler) {
+        int playerId = handler.getPlayerId();
+        if (!members.remove(playerId, handler)) return;
+
+        gameWorld.submit(() -> {
+            gameWorld.removePlayer(playerId);
+            viewers.remove(playerId);
+            broadcastEvent(new GameEvent(GameEvent.PLAYER_LEFT, playerId));
+        });
+        logger.info("Игрок #{} покинул комнату #{} (осталось: {}/{})", playerId, id, members.size(), capacity);
+        broadcastPlayerList();
+    }
+
+    void handlePlayerMove(int playerId, Direction direction) {
+        gameWorld.submit(() -> gameWorld.movePlayer(playerId, direction));
+    }
+
+    void handlePlayerAction(int playerId, String action) {
+        gameWorld.submit(() -> broadcast(new Message(Message.ACTION, playerId, action)));
+    }
+
+    void handleChat(int playerId, String text) {
+        gameWorld.submit(() -> broadcast(new Message(Message.CHAT, playerId, text)));
+    }
+
+    void requestLevelMap(GameServer.ClientHandler handler) {
+        gameWorld.submit(() -> {
+            if (members.get(handler.getPlayerId()) == handler) {
+                sendLevelMap(handler);
+            }
+        });
+    }
+
+    void shutdown() {
+        gameWorld.shutdown();
+    }
+
+    private void sendKnownPlayers(GameServer.ClientHandler target) {
+        for (GameServer.ClientHandler client : members.values()) {
+            if (client != target && client.getCharacterType() != null) {
+                target.sendProtocolMessage(GameProtocol.createPlayerInfoMessage(
+                        client.getPlayerId(), client.getPlayerName(), client.getCharacterType()));
+            }
+        }
+    }
+
+    private void sendLevelMap(GameServer.ClientHandler target) {
+        target.sendProtocolMessage(GameProtocol.createLevelUpdateMessage(
+                gameWorld.getCurrentLevel(), gameWorld.getMapVersion(), gameWorld.getMap(), hidesDiamonds()));
+    }
+
+    // С полем зрения алмазы не уходят с картой: каждый игрок получает только видимые ему
+    private boolean hidesDiamonds() {
+        return viewRadius > 0;
+    }
+
+    private void broadcastPlayerList() {
+        if (members.isEmpty()) return;
+
+        StringBuilder playerList = new StringBuilder("Комната «");
+        playerList.append(name).append("», игроки (")
+                .append(members.size()).append("/").append(capacity).append("): ");
+
+        for (GameServer.ClientHandler client : members.values()) {
+            playerList.append("#").append(client.getPlayerId());
+            if (client.getPlayerName() != null) {
+                playerList.append("(").append(client.getPlayerName()).append(")");
+            }
+            playerList.append(" ");
+        }
+
+        broadcastProtocolMessage(GameProtocol.createPlayerListMessage(playerList.toString()));
+    }
+
+    private void broadcastEvent(GameEvent event) {
+        broadcast(new Message(Message.EVENT, event.playerId, event));
+    }
+
+    private void broadcast(Message message) {
+        if (members.isEmpty()) return;
+
+        try {
+            GameMessage protocolMsg;
+
+            switch (message.getType()) {
+                case Message.CHAT:
+                    protocolMsg = GameProtocol.createChatMessage(message.getPlayerId(), (String)message.getData());
+                    break;
+                case Message.ACTION:
+                    protocolMsg = GameProtocol.createActionMessage(message.getPlayerId(), (String)message.getData());
+                    break;
+                case Message.EVENT:
+                    protocolMsg = GameProtocol.createEventMessage((GameEvent) message.getData());
+                    break;
+                default:
+                    return;
+            }
+
+            if (message.getType() == Message.CHAT) {
+                EncodedFrame frame = GameProtocol.encodeFrame(protocolMsg);
+                for (GameServer.ClientHandler client : members.values()) {
+                    client.sendChat(frame);
+                }
+            } else {
+                broadcastProtocolMessage(protocolMsg);
+            }
+
+        } catch (Exception e) {
+            logger.error("Ошибка broadcast в комнате #{}", id, e);
+        }
+    }
+
+    private void broadcastProtocolMessage(GameMessage protocolMsg) {
+        if (members.isEmpty()) return;
+
+        try {
+            EncodedFrame frame = GameProtocol.encodeFrame(protocolMsg);
+            for (GameServer.ClientHandler client : members.values()) {
+                client.sendFrame(frame);
+            }
+        } catch (Exception e) {
+            logger.error("Ошибка broadcast в комнате #{}", id, e);
+        }
+    }
+
+    /**
+     * Каждый игрок получает свой снимок: только сущности в его области интереса.
+     * Вошедшие в область и покинувшие ее сущности приходят в дельте как добавленные
+     * и удаленные записи. Когда меняется поле зрения игрока или набор видимых ему алмазов,
+     * он получает их заново - клиент рисует по ним туман и алмазы.
+     */
+    private void broadcastGameState(int snapshotTick) {
+        if (members.isEmpty()) return;
+
+        List<Integer> disconnectedClients = new ArrayList<>();
+        int snapshotBytes = 0;
+        long now = System.currentTimeMillis();
+
+        for (GameServer.ClientHandler client : members.values()) {
+            if (client.isOutboundStalled(now, OUTBOUND_STALL_TIMEOUT_MS)) {
+                logger.warn("Игрок #{} не принимает данные {} мс, в очереди {} кадров - отключаем",
+                        client.getPlayerId(), OUTBOUND_STALL_TIMEOUT_MS, client.getQueueDepth());
+                disconnectedClients.add(client.getPlayerId());
+                continue;
+            }
+
+            try {
+                int playerId = client.getPlayerId();
+                Viewer viewer = viewers.computeIfAbsent(playerId, k -> new Viewer());
+                byte[] snapshot = gameWorld.writeSnapshot(snapshotTick, viewer.snapshots, playerId, viewRadius);
+                viewer.snapshots.publish();
+                snapshotBytes += snapshot.length;
+
+                FieldOfView fieldOfView = gameWorld.fieldOfView(playerId, viewRadius);
+                if (fieldOfView != null) {
+                    int[] diamonds = gameWorld.visibleDiamonds(fieldOfView, viewer.diamonds);
+                    if (fieldOfView.getVersion() != viewer.fieldOfViewVersion || diamonds != viewer.diamonds) {
+                        viewer.fieldOfViewVersion = fieldOfView.getVersion();
+                        viewer.diamonds = diamonds;
+                        client.sendProtocolMessage(GameProtocol.createVisibilityMessage(fieldOfView.getRadius(),
+                                fieldOfView.cells(), diamonds, gameWorld.getMap().getWidth()));
+                    }
+                }
+
+                byte[] baseline = client.getSentSnapshot(client.getLastAckedTick());
+                EncodedFrame frame = null;
+                if (baseline != null) {
+                    byte[] delta = SnapshotDelta.encode(baseline, snapshot);
+                    if (delta != null && delta.length < snapshot.length) {
+                        frame = GameProtocol.encodeFrame(GameProtocol.createGameStateDeltaMessage(delta));
+                    }
+                }
+                if (frame == null) {
+                    frame = GameProtocol.encodeFrame(GameProtocol.createGameStateMessage(snapshot));
+                }
+
+                client.sendState(snapshotTick, snapshot, frame);
+            } catch (Exception e) {
+                logger.warn("Не удалось отправить GameState игроку #{}", client.getPlayerId(), e);
+                disconnectedClients.add(client.getPlayerId());
+            }
+        }
+        latestSnapshotBytes = snapshotBytes;
+
+        for (Integer playerId : disconnectedClients) {
+            server.removeClient(playerId);
+        }
+    }
+
+    private static class Viewer {
+        final SnapshotRing snapshots = new SnapshotRing();
+        // Версия FieldOfView и видимые алмазы, отправленные клиенту последними
+        int fieldOfViewVersion = -1;
+        int[] diamonds = new int[0];
+    }
+}
@@ -1,9 +1,11 @@
 package ru.kpfu.itis.server;
 
 import ru.kpfu.itis.common.*;
+import ru.kpfu.itis.protocol.EncodedFrame;
 import ru.kpfu.itis.protocol.GameMessage;
 import ru.kpfu.itis.protocol.GameProtocol;
 import ru.kpfu.itis.protocol.ProtocolException;
+import ru.kpfu.itis.protocol.SnapshotHistory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -11,88 +13,154 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
-
-public class GameServer {
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Сервер держит подключения и набор комнат. Каждая комната - отдельная партия
+ * со своим GameWorld; игровой цикл раз в тик раздает комнаты потокам RoomScheduler.
+ */
+public final class GameServer {
     private static final Logger logger = LoggerFactory.getLogger(GameServer.class);
-    private ServerSocket serverSocket;
-    private final GameWorld gameWorld;
+    private final TransportMode transportMode;
+    // Создается в start(): транспорт получает ссылку на уже построенный сервер
+    private volatile ServerTransport transport;
+    private final RoomManager roomManager;
+    private final RoomScheduler scheduler;
     private final Map<Integer, ClientHandler> clients = new ConcurrentHashMap<>();
-    private final ExecutorService threadPool = Executors.newCachedThreadPool();
-    private final ScheduledExecutorService gameLoop = Executors.newScheduledThreadPool(1);
+    private final GameLoop gameLoop;
     private volatile boolean running = false;
+    private final ReentrantLock sessionLock = new ReentrantLock();
+    private final int maxPlayers;
+    private final int viewRadius;
     private int nextPlayerId = 1;
+    // Номер снимка, общий для всех комнат; пишет только поток игрового цикла
+    private volatile int tick = 0;
+    // Сколько отставших тиков цикл догоняет подряд, остальные пропускаются
+    private static final int MAX_CATCH_UP_TICKS = 5;
     private int port;
     private ScheduledExecutorService maintenanceExecutor;
 
-    public GameServer(int port) throws IOException {
-        this.port = port;
-        serverSocket = new ServerSocket(port);
-        serverSocket.setReuseAddress(true);
-        serverSocket.setSoTimeout(1000);
+    public GameServer(int port) {
+        this(port, TransportMode.BLOCKING);
+    }
+
+    public GameServer(int port, TransportMode transportMode) {
+        this(port, transportMode, GameConstants.MAX_ROOMS * GameConstants.MAX_PLAYERS);
+    }
+
+    /**
+     * @param maxPlayers лимит подключений на весь сервер; в одной комнате
+     *                   не больше GameConstants.MAX_PLAYERS игроков
+     */
+    public GameServer(int port, TransportMode transportMode, int maxPlayers) {
+        this(port, transportMode, maxPlayers, GameConstants.TICK_RATE);
+    }
+
+    /**
+     * @param tickRate число тиков игрового цикла в секунду
+     */
+    public GameServer(int port, TransportMode transportMode, int maxPlayers, int tickRate) {
+        this(port, transportMode, maxPlayers, tickRate, GameConstants.VIEW_RADIUS);
+    }
 
-        gameWorld = new GameWorld();
-        gameWorld.setBroadcastCallback(this::broadcast);
-        logger.info("Игровой мир инициализирован");
+    /**
+     * @param viewRadius радиус обзора в клетках: игрок получает в снимках только врагов и
+     *                   патрульных, которых видит из-за стен, и ловушки не дальше этого;
+     *                   0 - все сущности уровня
+     */
+    public GameServer(int port, TransportMode transportMode, int maxPlayers, int tickRate, int viewRadius) {
+        this.port = port;
+        this.transportMode = transportMode;
+        this.maxPlayers = maxPlayers;
+        this.viewRadius = viewRadius;
+        logger.info("Сетевой транспорт: {}", transportMode);
+
+        gameLoop = new GameLoop("game-loop", tickRate, MAX_CATCH_UP_TICKS, this::gameTick);
+        roomManager = new RoomManager(this, GameConstants.MAX_ROOMS, GameConstants.MAX_PLAYERS);
+        scheduler = new RoomScheduler(RoomScheduler.defaultParallelism(), gameLoop.getTickNanos());
+        logger.info("Частота тиков: {} в секунду", tickRate);
+        if (viewRadius > 0) {
+            logger.info("Радиус области интереса: {} клеток", viewRadius);
+        } else {
+            logger.info("Область интереса отключена: клиенты получают все сущности уровня");
+        }
+        logger.info("Максимум комнат: {}, игроков в комнате: {}", GameConstants.MAX_ROOMS, GameConstants.MAX_PLAYERS);
     }
 
-    public void start() {
+    /**
+     * Открывает порт и запускает игровой цикл и прием подключений.
+     *
+     * @throws IOException если порт не удалось занять; сервер при этом не запущен
+     */
+    public void start() throws IOException {
+        transport = createTransport();
         running = true;
 
         startMaintenance();
 
-        gameLoop.scheduleAtFixedRate(() -> {
-            try {
-                gameTick();
-            } catch (Exception e) {
-                logger.error("Ошибка игрового цикла", e);
-            }
-        }, 0, 100, TimeUnit.MILLISECONDS);
+        gameLoop.start();
 
-        threadPool.execute(() -> {
-            logger.info("Сервер запущен на порту {}", port);
-            logger.info("Ожидаем подключения игроков...");
+        transport.start();
+        logger.info("Сервер запущен на порту {}", port);
+        logger.info("Ожидаем подключения игроков...");
+    }
 
-            while (running) {
-                try {
-                    Socket clientSocket = serverSocket.accept();
-                    clientSocket.setTcpNoDelay(true);
-                    clientSocket.setSoTimeout(45000);
+    private ServerTransport createTransport() throws IOException {
+        switch (transportMode) {
+            case NIO:
+                return new NioTransport(this, port, NioTransport.defaultIoThreads());
+            case VIRTUAL:
+                return new BlockingTransport(this, port, true);
+            default:
+                return new BlockingTransport(this, port, false);
+        }
+    }
 
-                    if (clients.size() >= 3) {
-                        logger.warn("Достигнут лимит игроков (3). Отклоняем подключение.");
-                        try {
-                            OutputStream out = clientSocket.getOutputStream();
-                            GameMessage errorMsg = GameProtocol.createErrorMessage(
-                                    GameProtocol.ERROR_SERVER_FULL,
-                                    "Сервер заполнен (максимум 3 игрока)"
-                            );
-                            GameProtocol.writeMessage(out, errorMsg);
-                            out.flush();
-                        } catch (Exception e) {
-                            logger.error("Ошибка при отправке сообщения об ошибке клиенту", e);
-                        }
-                        clientSocket.close();
-                        continue;
-                    }
+    ClientHandler openSession(ClientConnection connection) {
+        ClientHandler handler = null;
+        sessionLock.lock();
+        try {
+            if (running && clients.size() < maxPlayers) {
+                handler = new ClientHandler(connection, nextPlayerId++);
+                clients.put(handler.playerId, handler);
+            }
+        } finally {
+            sessionLock.unlock();
+        }
 
-                    int playerId = nextPlayerId++;
-                    ClientHandler handler = new ClientHandler(clientSocket, playerId);
-                    clients.put(playerId, handler);
-                    threadPool.execute(handler);
+        if (handler == null) {
+            if (running) {
+                rejectConnection(connection);
+            } else {
+                connection.close();
+            }
+            return null;
+        }
 
-                    logger.info("Игрок #{} подключился (всего: {}/3)", playerId, clients.size());
-                    broadcastPlayerList();
+        int playerId = handler.playerId;
+        handler.sendProtocolMessage(new GameMessage(
+                GameProtocol.TYPE_CONNECT,
+                String.valueOf(playerId).getBytes()
+        ));
+        logger.debug("Отправлен ID игроку #{}", playerId);
 
-                } catch (SocketTimeoutException e) {
-                    continue;
-                } catch (IOException e) {
-                    if (running) {
-                        logger.error("Ошибка приема подключения", e);
-                    }
-                }
-            }
-            logger.info("Сервер прекратил прием подключений");
-        });
+        logger.info("Игрок #{} подключился с {} (всего: {}/{})",
+                playerId, connection.getRemoteAddress(), clients.size(), maxPlayers);
+        return handler;
+    }
+
+    private void rejectConnection(ClientConnection connection) {
+        logger.warn("Достигнут лимит игроков ({}). Отклоняем подключение.", maxPlayers);
+        try {
+            connection.send(GameProtocol.encodeFrame(GameProtocol.createErrorMessage(
+                    GameProtocol.ERROR_SERVER_FULL,
+                    "Сервер заполнен (максимум " + maxPlayers + " игроков)"
+            )));
+        } catch (Exception e) {
+            logger.error("Ошибка при отправке сообщения об ошибке клиенту", e);
+        }
+        connection.close();
     }
 
     private void startMaintenance() {
@@ -114,11 +182,23 @@ public class GameServer {
                     removeClient(playerId);
                 }
 
+                for (ClientHandler client : clients.values()) {
+                    OutboundQueue queue = client.outbound;
+                    if (queue.maxDepth() > 1 || queue.droppedStates() > 0) {
+                        logger.info("Очередь игрока #{}: сейчас {}, максимум {}, пропущено состояний {}, сообщений чата {}",
+                                client.playerId, queue.depth(), queue.maxDepth(),
+                                queue.droppedStates(), queue.droppedChat());
+                    }
+                }
+
+                gameLoop.logStats();
+                scheduler.logStats(roomManager.getRooms());
+
                 if (!clients.isEmpty()) {
-                    GameMessage heartbeat = GameProtocol.createHeartbeatMessage();
+                    EncodedFrame heartbeat = GameProtocol.encodeFrame(GameProtocol.createHeartbeatMessage());
                     for (ClientHandler client : clients.values()) {
                         try {
-                            client.sendProtocolMessage(heartbeat);
+                            client.sendFrame(heartbeat);
                         } catch (Exception e) {
                             logger.debug("Ошибка отправки heartbeat клиенту #{}", client.playerId, e);
                         }
@@ -131,146 +211,29 @@ public class GameServer {
         }, 20000, 20000, TimeUnit.MILLISECONDS);
     }
 
-    private void broadcastPlayerList() {
-        if (clients.isEmpty()) return;
-
-        StringBuilder playerList = new StringBuilder("Игроки онлайн (");
-        playerList.append(clients.size()).append("/3): ");
-
-        for (ClientHandler client : clients.values()) {
-            playerList.append("#").append(client.playerId);
-            if (client.getPlayerName() != null) {
-                playerList.append("(").append(client.getPlayerName()).append(")");
-            }
-            playerList.append(" ");
-        }
-
-        try {
-            GameMessage playerListMsg = GameProtocol.createPlayerListMessage(playerList.toString());
-            for (ClientHandler client : clients.values()) {
-                client.sendProtocolMessage(playerListMsg);
-            }
-        } catch (Exception e) {
-            logger.error("Ошибка отправки списка игроков", e);
-        }
-    }
-
     private void gameTick() {
-        try {
-            gameWorld.updateEnemies();
-            GameWorld.GameState state = gameWorld.getGameState();
-
-            broadcastGameState(state);
-
-            if (state.levelComplete) {
-                broadcast(new Message(Message.ACTION, 0, "Уровень " + state.currentLevel + " пройден!"));
-                try {
-                    Thread.sleep(2000);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
-                gameWorld.loadLevel(state.currentLevel + 1);
-                broadcast(new Message(Message.ACTION, 0, "Загружен уровень " + (state.currentLevel + 1)));
-            }
-        } catch (Exception e) {
-            logger.error("Ошибка в игровом цикле", e);
-        }
+        scheduler.runRound(roomManager.getRooms(), ++tick);
     }
 
-    public void registerPlayer(int playerId, String name, String characterType) {
-        PlayerState player = gameWorld.addPlayer(playerId, name, characterType);
-        broadcast(new Message(Message.ACTION, 0, "👤 " + name + " (" + characterType + ") присоединился к игре"));
-        broadcastPlayerList();
+    int getCurrentTick() {
+        return tick;
     }
 
-    public void handlePlayerMove(int playerId, Direction direction) {
-        gameWorld.movePlayer(playerId, direction);
+    long getTickNanos() {
+        return gameLoop.getTickNanos();
     }
 
-    public void handlePlayerAction(int playerId, String action) {
-        broadcast(new Message(Message.ACTION, playerId, action));
+    int getViewRadius() {
+        return viewRadius;
     }
 
     public void removeClient(int playerId) {
         ClientHandler handler = clients.remove(playerId);
         if (handler != null) {
-            gameWorld.removePlayer(playerId);
-            String playerName = handler.getPlayerName();
-            String disconnectMsg = "Игрок #" + playerId;
-            if (playerName != null && !playerName.startsWith("Игрок #")) {
-                disconnectMsg += " (" + playerName + ")";
-            }
-            disconnectMsg += " отключился";
-
-            broadcast(new Message(Message.ACTION, 0, disconnectMsg));
-            logger.info("{} (осталось: {}/3)", disconnectMsg, clients.size());
-            broadcastPlayerList();
-        }
-    }
-
-    public void broadcast(Message message) {
-        if (clients.isEmpty()) return;
-
-        try {
-            GameMessage protocolMsg;
-
-            switch (message.getType()) {
-                case Message.CHAT:
-                    protocolMsg = GameProtocol.createChatMessage(message.getPlayerId(), (String)message.getData());
-                    break;
-                case Message.ACTION:
-                    protocolMsg = GameProtocol.createActionMessage(message.getPlayerId(), (String)message.getData());
-                    break;
-                case Message.LEVEL_UPDATE:
-                    protocolMsg = GameProtocol.createLevelUpdateMessage(message.getPlayerId(), (String)message.getData());
-                    break;
-                default:
-                    return;
-            }
-
-            List<Integer> disconnectedClients = new ArrayList<>();
-
-            for (ClientHandler client : clients.values()) {
-                try {
-                    client.sendProtocolMessage(protocolMsg);
-                } catch (Exception e) {
-                    logger.warn("Не удалось отправить сообщение игроку #{}", client.playerId, e);
-                    disconnectedClients.add(client.playerId);
-                }
-            }
-
-            for (Integer playerId : disconnectedClients) {
-                removeClient(playerId);
-            }
-
-        } catch (Exception e) {
-            logger.error("Ошибка broadcast", e);
-        }
-    }
-
-    private void broadcastGameState(GameWorld.GameState state) {
-        if (clients.isEmpty()) return;
-
-        try {
-            GameMessage gameStateMsg = GameProtocol.createGameStateMessage(state);
-
-            List<Integer> disconnectedClients = new ArrayList<>();
-
-            for (ClientHandler client : clients.values()) {
-                try {
-                    client.sendProtocolMessage(gameStateMsg);
-                } catch (Exception e) {
-                    logger.warn("Не удалось отправить GameState игроку #{}", client.playerId, e);
-                    disconnectedClients.add(client.playerId);
-                }
-            }
-
-            for (Integer playerId : disconnectedClients) {
-                removeClient(playerId);
-            }
-
-        } catch (IOException e) {
-            logger.error("Ошибка сериализации GameState", e);
+            handler.closeConnection();
+            roomManager.leave(handler);
+            logger.info("Игрок #{} ({}) отключился (всего: {}/{})",
+                    playerId, handler.getPlayerName(), clients.size(), maxPlayers);
         }
     }
 
@@ -282,22 +245,18 @@ public class GameServer {
             maintenanceExecutor.shutdownNow();
         }
 
-        gameLoop.shutdownNow();
+        gameLoop.stop();
+        scheduler.shutdown();
 
         List<Integer> clientIds = new ArrayList<>(clients.keySet());
         for (Integer playerId : clientIds) {
             removeClient(playerId);
         }
+        roomManager.shutdown();
 
-        try {
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                serverSocket.close();
-            }
-        } catch (IOException e) {
-            logger.debug("Ошибка при закрытии серверного сокета", e);
+        if (transport != null) {
+            transport.stop();
         }
-
-        threadPool.shutdown();
         logger.info("Сервер остановлен");
     }
 
@@ -305,20 +264,44 @@ public class GameServer {
         return clients.size();
     }
 
-    class ClientHandler implements Runnable {
-        private final Socket socket;
+    public int getRoomCount() {
+        return roomManager.getRooms().size();
+    }
+
+    /**
+     * Протокольная сторона клиента. Исходящие кадры не пишутся в сокет из вызывающего
+     * потока: они складываются в OutboundQueue, а отдельная задача-писатель на
+     * исполнителе транспорта склеивает накопленное в один кадр и отправляет его.
+     */
+    class ClientHandler {
+        private final ClientConnection connection;
+        private final OutboundQueue outbound = new OutboundQueue();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
         private final int playerId;
-        private OutputStream out;
-        private InputStream in;
         private volatile boolean connected = true;
         private String playerName;
-        private final Object writeLock = new Object();
-        private long lastActivityTime = System.currentTimeMillis();
-
-        public ClientHandler(Socket socket, int playerId) {
-            this.socket = socket;
+        private String characterType;
+        private volatile long lastActivityTime = System.currentTimeMillis();
+        private volatile int lastAckedTick = -1;
+        private volatile boolean compression = false;
+        private final SnapshotHistory sentSnapshots = new SnapshotHistory();
+        private volatile GameRoom room;
+        // Подтверждения снимков старше этого номера относятся к прежней комнате
+        private volatile int firstRoomTick = 0;
+
+        ClientHandler(ClientConnection connection, int playerId) {
+            this.connection = connection;
             this.playerId = playerId;
             this.playerName = "Игрок #" + playerId;
+            connection.setWritableListener(this::scheduleFlush);
+        }
+
+        public int getPlayerId() {
+            return playerId;
+        }
+
+        public boolean isConnected() {
+            return connected;
         }
 
         public long getLastActivityTime() {
@@ -329,78 +312,59 @@ public class GameServer {
             return playerName;
         }
 
-        @Override
-        public void run() {
-            logger.info("Начинаем обработку клиента #{}", playerId);
-            try {
-                out = socket.getOutputStream();
-                in = socket.getInputStream();
-
-                GameMessage connectMsg = new GameMessage(
-                        GameProtocol.TYPE_CONNECT,
-                        String.valueOf(playerId).getBytes()
-                );
-                sendProtocolMessage(connectMsg);
-                logger.debug("Отправлен ID игроку #{}", playerId);
-
-                while (connected && !socket.isClosed()) {
-                    try {
-                        GameMessage message = GameProtocol.readMessage(in);
-                        if (message == null) {
-                            logger.info("Клиент #{} отключился (конец потока)", playerId);
-                            break;
-                        }
+        public String getCharacterType() {
+            return characterType;
+        }
 
-                        lastActivityTime = System.currentTimeMillis();
-                        handleProtocolMessage(message);
-
-                    } catch (ProtocolException e) {
-                        logger.warn("Протокольная ошибка от #{}: {}", playerId, e.getMessage());
-                        if (e.getMessage().contains("Неверный заголовок")) {
-                            try {
-                                if (in.available() > 0) {
-                                    in.skip(1);
-                                    continue;
-                                }
-                            } catch (IOException ex) {
-                                logger.debug("Ошибка при пропуске байта", ex);
-                            }
-                        }
+        public int getLastAckedTick() {
+            return lastAckedTick;
+        }
 
-                        try {
-                            GameMessage errorMsg = GameProtocol.createErrorMessage(
-                                    GameProtocol.ERROR_INVALID_MESSAGE,
-                                    "Ошибка протокола: " + e.getMessage()
-                            );
-                            sendProtocolMessage(errorMsg);
-                        } catch (Exception ex) {
-                            logger.debug("Ошибка при отправке сообщения об ошибке", ex);
-                        }
+        GameRoom getRoom() {
+            return room;
+        }
 
-                        break;
-                    } catch (SocketTimeoutException e) {
-                        logger.debug("Таймаут при чтении от клиента #{}", playerId);
-                        continue;
-                    } catch (EOFException e) {
-                        logger.info("Клиент #{} отключился (EOF)", playerId);
-                        break;
-                    } catch (IOException e) {
-                        if (e.getMessage() != null && (e.getMessage().contains("closed") ||
-                                e.getMessage().contains("reset") || e.getMessage().contains("abort"))) {
-                            logger.warn("Соединение с клиентом #{} разорвано", playerId);
-                            break;
-                        }
-                        logger.error("Ошибка чтения от клиента #{}", playerId, e);
-                        break;
-                    }
-                }
-            } catch (IOException e) {
-                logger.error("Ошибка подключения клиента #{}", playerId, e);
-            } finally {
-                disconnect();
+        /**
+         * Вызывается RoomManager под его блокировкой. Снимки прежней комнаты
+         * больше не годятся как база для дельт.
+         */
+        void enterRoom(GameRoom room, int firstTick) {
+            this.room = room;
+            this.firstRoomTick = firstTick;
+            this.lastAckedTick = -1;
+            outbound.dropState();
+        }
+
+        byte[] getSentSnapshot(int tick) {
+            return sentSnapshots.get(tick);
+        }
+
+        boolean isOutboundStalled(long now, long timeoutMs) {
+            return outbound.isStalled(now, timeoutMs);
+        }
+
+        void onMessage(GameMessage message) {
+            lastActivityTime = System.currentTimeMillis();
+            handleProtocolMessage(message);
+        }
+
+        void onProtocolError(ProtocolException e) {
+            logger.warn("Протокольная ошибка от #{}: {}", playerId, e.getMessage());
+            // Соединение сразу закрывается, поэтому ошибку пишем мимо очереди
+            try {
+                connection.send(GameProtocol.encodeFrame(GameProtocol.createErrorMessage(
+                        GameProtocol.ERROR_INVALID_MESSAGE,
+                        "Ошибка протокола: " + e.getMessage()
+                )));
+            } catch (Exception ex) {
+                logger.debug("Ошибка при отправке сообщения об ошибке", ex);
             }
         }
 
+        void connectionLost() {
+            disconnect();
+        }
+
         private void handleProtocolMessage(GameMessage message) {
             try {
                 byte type = message.getType();
@@ -412,30 +376,70 @@ public class GameServer {
                             String username = connectData[0];
                             String characterType = connectData[1];
                             this.playerName = username;
+                            this.characterType = characterType;
+                            if (connectData.length >= 3 && GameProtocol.CAPABILITY_DEFLATE.equals(connectData[2])) {
+                                compression = true;
+                                sendProtocolMessage(new GameMessage(
+                                        GameProtocol.TYPE_CONNECT,
+                                        (playerId + "|" + GameProtocol.CAPABILITY_DEFLATE).getBytes()
+                                ));
+                                logger.debug("Игрок #{} согласовал сжатие", playerId);
+                            }
                             logger.info("Регистрируем игрока #{}: {} ({})", playerId, username, characterType);
-                            registerPlayer(playerId, username, characterType);
+                            if (roomManager.quickJoin(this) == null) {
+                                sendError(GameProtocol.ERROR_SERVER_FULL, "Нет свободных комнат");
+                            }
+                        }
+                        break;
+
+                    case GameProtocol.TYPE_ROOM_LIST:
+                        sendProtocolMessage(GameProtocol.createRoomListMessage(roomManager.listRooms()));
+                        break;
+
+                    case GameProtocol.TYPE_ROOM_CREATE:
+                        if (characterType == null) {
+                            logger.warn("Игрок #{} создает комнату до регистрации", playerId);
+                            break;
+                        }
+                        if (roomManager.createAndJoin(this, GameProtocol.parseRoomCreateMessage(message)) == null) {
+                            sendError(GameProtocol.ERROR_SERVER_FULL, "Достигнут лимит комнат");
+                        }
+                        break;
+
+                    case GameProtocol.TYPE_ROOM_JOIN:
+                        if (characterType == null) {
+                            logger.warn("Игрок #{} входит в комнату до регистрации", playerId);
+                            break;
+                        }
+                        int roomId = GameProtocol.parseRoomJoinMessage(message);
+                        if (!roomManager.join(this, roomId)) {
+                            sendError(GameProtocol.ERROR_ROOM_FULL, "Комната #" + roomId + " недоступна или заполнена");
                         }
                         break;
 
                     case GameProtocol.TYPE_PLAYER_MOVE:
                         GameProtocol.MoveData moveData = GameProtocol.parseMoveMessage(message);
                         if (moveData.playerId == playerId) {
-                            Direction dir = GameProtocol.byteToDirection(moveData.direction);
-                            handlePlayerMove(playerId, dir);
+                            GameRoom current = room;
+                            if (current != null) {
+                                current.handlePlayerMove(playerId, GameProtocol.byteToDirection(moveData.direction));
+                            }
                         }
                         break;
 
                     case GameProtocol.TYPE_ACTION:
                         GameProtocol.MessageData actionData = GameProtocol.parseTextMessage(message);
-                        if (actionData.playerId == playerId) {
-                            handlePlayerAction(playerId, actionData.text);
+                        GameRoom actionRoom = room;
+                        if (actionData.playerId == playerId && actionRoom != null) {
+                            actionRoom.handlePlayerAction(playerId, actionData.text);
                         }
                         break;
 
                     case GameProtocol.TYPE_CHAT:
                         GameProtocol.MessageData chatData = GameProtocol.parseTextMessage(message);
-                        if (chatData.playerId == playerId) {
-                            broadcast(new Message(Message.CHAT, playerId, chatData.text));
+                        GameRoom chatRoom = room;
+                        if (chatData.playerId == playerId && chatRoom != null) {
+                            chatRoom.handleChat(playerId, chatData.text);
                         }
                         break;
 
@@ -448,6 +452,19 @@ public class GameServer {
                         logger.debug("Получен heartbeat от игрока #{}", playerId);
                         break;
 
+                    case GameProtocol.TYPE_STATE_ACK:
+                        int ackedTick = GameProtocol.parseStateAckMessage(message);
+                        lastAckedTick = ackedTick >= firstRoomTick ? ackedTick : -1;
+                        break;
+
+                    case GameProtocol.TYPE_MAP_REQUEST:
+                        logger.debug("Игрок #{} запросил карту уровня", playerId);
+                        GameRoom mapRoom = room;
+                        if (mapRoom != null) {
+                            mapRoom.requestLevelMap(this);
+                        }
+                        break;
+
                     default:
                         logger.warn("Неизвестный тип сообщения от #{}: {}", playerId, type);
                 }
@@ -457,36 +474,103 @@ public class GameServer {
         }
 
         public void sendProtocolMessage(GameMessage message) {
-            if (!connected || out == null) {
+            try {
+                sendFrame(GameProtocol.encodeFrame(message));
+            } catch (ProtocolException e) {
+                logger.error("Не удалось закодировать сообщение для игрока #{}", playerId, e);
+            }
+        }
+
+        /**
+         * Ставит кадр в полосу событий и планирует отправку. Кадры, поставленные до того,
+         * как писатель их заберет, уходят одним пакетом - вместе с состоянием тика, если оно успело.
+         * Без планирования клиент вне комнаты (ошибки входа, список комнат, heartbeat)
+         * не получил бы ничего, пока не пойдут состояния.
+         */
+        public void sendFrame(EncodedFrame frame) {
+            if (!connected) {
                 logger.warn("Не могу отправить - клиент #{} отключен", playerId);
                 return;
             }
 
-            try {
-                synchronized (writeLock) {
-                    GameProtocol.writeMessage(out, message);
-                }
-            } catch (Exception e) {
-                logger.error("Ошибка отправки игроку #{}", playerId, e);
+            if (!outbound.offerEvent(frame)) {
+                logger.warn("Очередь событий игрока #{} переполнена ({} кадров) - отключаем",
+                        playerId, OutboundQueue.MAX_EVENTS);
                 disconnect();
+                return;
             }
+            scheduleFlush();
         }
 
-        private void disconnect() {
+        void sendChat(EncodedFrame frame) {
+            if (connected) {
+                outbound.offerChat(frame);
+            }
+        }
+
+        void sendState(int tick, byte[] snapshot, EncodedFrame frame) {
             if (!connected) return;
 
-            connected = false;
+            sentSnapshots.put(tick, snapshot);
+            outbound.offerState(frame);
+            scheduleFlush();
+        }
+
+        private void sendError(byte code, String text) {
+            sendProtocolMessage(GameProtocol.createErrorMessage(code, text));
+        }
+
+        public int getQueueDepth() {
+            return outbound.depth();
+        }
 
+        private void scheduleFlush() {
+            if (!connected || !flushScheduled.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                transport.writerExecutor().execute(this::flush);
+            } catch (RejectedExecutionException e) {
+                flushScheduled.set(false);
+            }
+        }
+
+        private void flush() {
             try {
-                if (socket != null && !socket.isClosed()) {
-                    socket.close();
+                while (connected && !connection.isBackedUp()) {
+                    List<EncodedFrame> frames = outbound.drain();
+                    if (frames.isEmpty()) {
+                        break;
+                    }
+                    EncodedFrame frame = frames.size() == 1 ? frames.get(0) : GameProtocol.encodeBatch(frames);
+                    connection.send(compression ? frame.compressed() : frame);
+                }
+            } catch (Exception e) {
+                if (connected) {
+                    logger.error("Ошибка отправки игроку #{}", playerId, e);
                 }
-            } catch (IOException e) {
-                logger.debug("Ошибка при закрытии сокета клиента #{}", playerId, e);
+                disconnect();
+            } finally {
+                flushScheduled.set(false);
             }
 
-            GameServer.this.removeClient(playerId);
+            // Состояние или событие могло прийти между последним drain() и сбросом флага
+            if (connected && outbound.hasUrgent() && !connection.isBackedUp()) {
+                scheduleFlush();
+            }
+        }
+
+        void closeConnection() {
+            if (!connected) return;
+
+            connected = false;
+            connection.close();
             logger.info("Соединение с игроком #{} ({}) закрыто", playerId, playerName);
         }
+
+        private void disconnect() {
+            closeConnection();
+            GameServer.this.removeClient(playerId);
+        }
     }
-}
\ No newline at end of file
+}
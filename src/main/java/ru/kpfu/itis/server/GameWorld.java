@@ -1,61 +1,189 @@
 package ru.kpfu.itis.server;
 
 import ru.kpfu.itis.common.*;
+import ru.kpfu.itis.protocol.GameStateCodec;
 import ru.kpfu.itis.server.LevelLoader.GeneratedLevel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
-
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Игровой мир принадлежит одному потоку - игровому циклу. Остальные потоки
+ * не меняют его напрямую, а ставят команды через submit().
+ * Перезапуск и переход на следующий уровень - фазы RoomPhase, которые
+ * заканчиваются через заданное число тиков.
+ * Все отложенные действия - шаги врагов и патрулей, срабатывания ловушек,
+ * откаты атак и конец фазы - лежат в колесе таймеров, поэтому тик обходит
+ * только то, что должно случиться именно в нем.
+ */
 public class GameWorld {
     private static final Logger logger = LoggerFactory.getLogger(GameWorld.class);
-    private TileType[][] map;
-    private final Map<Integer, PlayerState> players = new ConcurrentHashMap<>();
-    private final List<Enemy> enemies = new CopyOnWriteArrayList<>();
-    private final List<PatrolEnemy> patrolEnemies = new CopyOnWriteArrayList<>();
-    private final List<Trap> traps = new CopyOnWriteArrayList<>();
-    private final List<String> collectedDiamonds = new ArrayList<>();
+    // Неизменяемая карта: общий базовый слой уровня плюс изменения этой комнаты
+    private TileMap map;
+    private List<int[]> startPositions = new ArrayList<>();
+    // По возрастанию id: снимок пишет игроков отсортированными, и дельта сравнивает их слиянием
+    private final Map<Integer, PlayerState> players = new TreeMap<>();
+    // Враги и патрули хранятся массивами; индекс сущности не меняется до следующего уровня
+    private final EntityStore enemies = new EntityStore();
+    private final EntityStore patrols = new EntityStore();
+    private final List<Trap> traps = new ArrayList<>();
+    private boolean[] trapCoolingDown = new boolean[0];
+    // Кто стоит в какой клетке: игроки, враги и патрули; обновляется при каждом перемещении
+    private final OccupancyGrid grid = new OccupancyGrid();
+    private final Map<Integer, Integer> playerHandles = new HashMap<>();
+    // Клетки, которые бьют ловушки уровня; строится при загрузке уровня
+    private final TrapCoverage trapCoverage = new TrapCoverage();
+    // Поле зрения игроков (по id), заводится при первом снимке игрока
+    private final Map<Integer, FieldOfView> fieldsOfView = new HashMap<>();
+    // Буфер для visibleDiamonds
+    private int[] diamondScratch = new int[16];
+    private int diamondScratchSize;
+    // Буферы снимка для игрока: сам снимок и отобранные в него враги, патрульные и ловушки
+    private ByteBuffer snapshotScratch = ByteBuffer.allocate(0);
+    private long[] enemyScratch = new long[0];
+    private long[] patrolScratch = new long[0];
+    private int[] trapScratch = new int[0];
+    // Команды от сетевых потоков, применяются только потоком игрового цикла
+    private final Queue<Runnable> commands = new ConcurrentLinkedQueue<>();
+    private final long tickNanos;
+    private long tickCount = 0;
+    private RoomPhase phase = RoomPhase.PLAYING;
+    private final TimingWheel timers = new TimingWheel();
+    // Еще не собранные алмазы уровня
+    private final CellSet remainingDiamonds = new CellSet();
     private int currentLevel = 1;
     private int totalDiamonds;
     private int collectedDiamondsCount = 0;
     private boolean levelComplete = false;
     private long levelStartTime;
-    private boolean isRestarting = false;
     private java.util.function.Consumer<Message> broadcastCallback;
+    private MapListener mapListener;
+    private int mapVersion = 0;
 
-    // Новые поля для перехода между уровнями
-    private boolean isLevelTransitioning = false;
+    // Время начала перехода нужно клиенту для анимации
     private long levelTransitionStartTime = 0;
     private static final long LEVEL_TRANSITION_DURATION = 2000; // 2 секунды на переход
+    private static final long RESTART_DELAY = 3000;
 
     private static final long PATROL_ENEMY_MOVE_DELAY = 600;
     private static final long ENEMY_ATTACK_COOLDOWN = 1000;
 
+    // Ссылка в индексе клеток: вид сущности в двух младших битах,
+    // в остальных - id игрока или индекс в EntityStore
+    private static final int REF_PLAYER = 0;
+    private static final int REF_ENEMY = 1;
+    private static final int REF_PATROL = 2;
+    private static final int REF_KIND_MASK = 3;
+
+    private static final Direction[] DIRECTIONS = Direction.values();
+    private static final PatrolAxis[] PATROL_AXES = PatrolAxis.values();
+    private static final PatrolDirection[] PATROL_DIRECTIONS = PatrolDirection.values();
+
     public GameWorld() {
+        this(TimeUnit.MILLISECONDS.toNanos(GameConstants.GAME_TICK_MS));
+    }
+
+    public GameWorld(long tickNanos) {
+        this.tickNanos = tickNanos;
         LevelLoader.createDefaultLevels();
         loadLevel(currentLevel);
     }
 
+    /**
+     * Один шаг мира: команды игроков, затем задачи колеса таймеров, наступившие в этом тике.
+     * Во время перехода на следующий уровень враги и ловушки стоят.
+     */
+    public void tick() {
+        tickCount++;
+        processCommands();
+        timers.advance(tickCount);
+
+        // На случай, если игроки уже на дверях
+        checkLevelTransition();
+    }
+
+    public RoomPhase getPhase() {
+        return phase;
+    }
+
+    private void enterPhase(RoomPhase next, long durationMs) {
+        phase = next;
+        timers.schedule(toTicks(durationMs), this::finishPhase);
+    }
+
+    private long toTicks(long durationMs) {
+        return Math.max(1, (TimeUnit.MILLISECONDS.toNanos(durationMs) + tickNanos - 1) / tickNanos);
+    }
+
+    private void finishPhase() {
+        if (phase == RoomPhase.TRANSITIONING) {
+            loadLevel(currentLevel + 1);
+            emit(GameEvent.LEVEL_LOADED, 0, currentLevel);
+        } else if (phase == RoomPhase.RESTARTING) {
+            emit(GameEvent.LEVEL_RESTARTED, 0);
+            loadLevel(currentLevel);
+        }
+    }
+
+    // Повторная гибель во время отсчета перезапуск не продлевает
+    private void requestRestart() {
+        if (phase == RoomPhase.PLAYING) {
+            enterPhase(RoomPhase.RESTARTING, RESTART_DELAY);
+        }
+    }
+
+    /**
+     * Ставит команду в очередь мира. Можно вызывать из любого потока.
+     */
+    public void submit(Runnable command) {
+        commands.add(command);
+    }
+
+    private void processCommands() {
+        Runnable command;
+        while ((command = commands.poll()) != null) {
+            try {
+                command.run();
+            } catch (Exception e) {
+                logger.error("Ошибка выполнения команды мира", e);
+            }
+        }
+    }
+
+    public void shutdown() {
+        commands.clear();
+    }
+
     public void loadLevel(int level) {
-        isRestarting = false;
-        isLevelTransitioning = false; // Сбрасываем флаг перехода
+        phase = RoomPhase.PLAYING;
         currentLevel = level;
         GeneratedLevel generated = LevelLoader.loadLevel(level);
 
-        if (generated == null) {
-            logger.error("Не удалось загрузить уровень {}", level);
-            return;
+        this.map = generated.tiles;
+        this.startPositions = generated.startPositions;
+        this.mapVersion++;
+        this.grid.reset(map.getWidth(), map.getHeight());
+        this.playerHandles.clear();
+        for (FieldOfView fieldOfView : fieldsOfView.values()) {
+            fieldOfView.invalidate();
         }
-
-        this.map = generated.map;
         this.enemies.clear();
-        this.enemies.addAll(generated.enemies);
-        this.patrolEnemies.clear();
+        for (Enemy enemy : generated.enemies) {
+            int index = enemies.add(enemy.id, enemy.x, enemy.y, enemy.health, enemy.type.id, enemy.direction.ordinal());
+            enemies.active[index] = enemy.isActive;
+            enemies.cell[index] = grid.add(ref(REF_ENEMY, index), enemy.x, enemy.y);
+        }
+        this.patrols.clear();
 
         if (generated.patrolEnemies != null && !generated.patrolEnemies.isEmpty()) {
-            this.patrolEnemies.addAll(generated.patrolEnemies);
+            for (PatrolEnemy patrolEnemy : generated.patrolEnemies) {
+                addPatrol(patrolEnemy.x, patrolEnemy.y, patrolEnemy.axis, patrolEnemy.direction);
+            }
         } else {
             this.initPatrolEnemies();
         }
@@ -66,11 +194,17 @@ public class GameWorld {
         } else {
             this.initTraps();
         }
+        this.trapCoverage.build(traps, map.getWidth(), map.getHeight());
+        this.trapCoolingDown = new boolean[traps.size()];
         this.totalDiamonds = generated.totalDiamonds;
         this.collectedDiamondsCount = 0;
         this.levelComplete = false;
         this.levelStartTime = System.currentTimeMillis();
-        this.collectedDiamonds.clear();
+        int width = map.getWidth();
+        this.remainingDiamonds.reset(width, map.getHeight());
+        this.map.forEachCell(TileType.DIAMOND, cell -> remainingDiamonds.add(cell % width, cell / width));
+        this.timers.clear();
+        scheduleLevelTimers();
 
         int startIndex = 0;
         List<PlayerState> playerList = new ArrayList<>(players.values());
@@ -79,8 +213,8 @@ public class GameWorld {
             player.diamonds = 0;
             player.hasKey = false; // Сбрасываем ключ при загрузке нового уровня
 
-            if (startIndex < generated.startPositions.size()) {
-                int[] startPos = generated.startPositions.get(startIndex);
+            if (startIndex < startPositions.size()) {
+                int[] startPos = startPositions.get(startIndex);
 
                 if (isPositionWalkable(startPos[0], startPos[1])) {
                     player.x = startPos[0];
@@ -94,14 +228,36 @@ public class GameWorld {
             } else {
                 findFreePosition(player);
             }
+            trackPlayer(player);
         }
 
         logger.info("Уровень {} загружен. Алмазов: {}", level, totalDiamonds);
+
+        if (mapListener != null) {
+            mapListener.onLevelLoaded(currentLevel, mapVersion, map);
+        }
+    }
+
+    private void setTile(int x, int y, TileType tile) {
+        TileType previous = map.get(x, y);
+        if (previous == tile) return;
+
+        map = map.withTile(x, y, tile);
+        mapVersion++;
+        if (FieldOfView.blocksSight(previous) != FieldOfView.blocksSight(tile)) {
+            for (FieldOfView fieldOfView : fieldsOfView.values()) {
+                fieldOfView.invalidate(x, y);
+            }
+        }
+
+        if (mapListener != null) {
+            mapListener.onTileChanged(mapVersion, x, y, tile);
+        }
     }
 
     // Новый метод: проверка перехода на следующий уровень
     private void checkLevelTransition() {
-        if (isLevelTransitioning || levelComplete) return;
+        if (phase != RoomPhase.PLAYING || levelComplete) return;
 
         // Проверяем, собраны ли все алмазы
         if (collectedDiamondsCount < totalDiamonds) {
@@ -117,7 +273,7 @@ public class GameWorld {
                 alivePlayers++;
 
                 // Проверяем, стоит ли игрок на двери
-                TileType currentTile = map[player.y][player.x];
+                TileType currentTile = map.get(player.x, player.y);
                 if (currentTile != TileType.DOOR) {
                     allPlayersOnDoor = false;
                     break;
@@ -126,49 +282,43 @@ public class GameWorld {
         }
 
         // Если есть живые игроки и все они на дверях, то начинаем переход
-        if (alivePlayers > 0 && allPlayersOnDoor && !isRestarting) {
+        if (alivePlayers > 0 && allPlayersOnDoor) {
             startLevelTransition();
         }
     }
 
     // Новый метод: начало перехода на следующий уровень
     private void startLevelTransition() {
-        isLevelTransitioning = true;
         levelTransitionStartTime = System.currentTimeMillis();
         levelComplete = true;
+        enterPhase(RoomPhase.TRANSITIONING, LEVEL_TRANSITION_DURATION);
 
-        broadcast(new Message(Message.ACTION, 0,
-                "🎉 Все игроки в дверях! Переход на следующий уровень через 2 секунды..."));
-
-        // Запускаем таймер для перехода
-        new Timer().schedule(new TimerTask() {
-            @Override
-            public void run() {
-                loadLevel(currentLevel + 1);
-                isLevelTransitioning = false;
-                broadcast(new Message(Message.ACTION, 0,
-                        "🌌 Уровень " + currentLevel + " загружен!"));
-            }
-        }, LEVEL_TRANSITION_DURATION);
+        emit(GameEvent.ALL_AT_DOORS, 0);
+        emit(GameEvent.LEVEL_COMPLETE, 0, currentLevel);
     }
 
     private boolean isPositionWalkable(int x, int y) {
-        if (x < 0 || x >= map[0].length || y < 0 || y >= map.length) {
+        if (!map.contains(x, y)) {
             return false;
         }
-        return map[y][x].isWalkable() && !isPositionOccupied(x, y);
+        return map.get(x, y).isWalkable() && !isPositionOccupied(x, y);
+    }
+
+    // Появиться можно на свободной проходимой клетке, но не на алмазе: клетку под игроком
+    // addPlayer делает полом, и алмаз пропал бы несобранным
+    private boolean isSpawnable(int x, int y) {
+        return isPositionWalkable(x, y) && map.get(x, y) != TileType.DIAMOND;
     }
 
     private void findFreePosition(PlayerState player) {
-        GeneratedLevel generated = LevelLoader.loadLevel(currentLevel);
-        if (generated != null && !generated.startPositions.isEmpty()) {
-            for (int[] startPos : generated.startPositions) {
+        if (!startPositions.isEmpty()) {
+            for (int[] startPos : startPositions) {
                 for (int dx = -2; dx <= 2; dx++) {
                     for (int dy = -2; dy <= 2; dy++) {
                         int x = startPos[0] + dx;
                         int y = startPos[1] + dy;
-                        if (x >= 0 && x < map[0].length && y >= 0 && y < map.length) {
-                            if (isPositionWalkable(x, y)) {
+                        if (map.contains(x, y)) {
+                            if (isSpawnable(x, y)) {
                                 player.x = x;
                                 player.y = y;
                                 return;
@@ -179,9 +329,9 @@ public class GameWorld {
             }
         }
 
-        for (int y = 0; y < map.length; y++) {
-            for (int x = 0; x < map[y].length; x++) {
-                if (isPositionWalkable(x, y)) {
+        for (int y = 0; y < map.getHeight(); y++) {
+            for (int x = 0; x < map.getWidth(); x++) {
+                if (isSpawnable(x, y)) {
                     player.x = x;
                     player.y = y;
                     return;
@@ -193,33 +343,63 @@ public class GameWorld {
         player.y = 1;
     }
 
-    public synchronized PlayerState addPlayer(int id, String name, String characterType) {
+    public PlayerState addPlayer(int id, String name, String characterType) {
         PlayerState player = new PlayerState(id, name, characterType);
         player.lives = 3;
         findFreePosition(player);
         players.put(id, player);
+        trackPlayer(player);
 
-        if (map[player.y][player.x] != TileType.FLOOR) {
-            map[player.y][player.x] = TileType.FLOOR;
+        // Запасная клетка (1, 1) может оказаться алмазом - тогда он уходит из уровня
+        if (remainingDiamonds.remove(player.x, player.y)) {
+            totalDiamonds--;
         }
+        setTile(player.x, player.y, TileType.FLOOR);
 
         return player;
     }
 
     private boolean isPositionOccupied(int x, int y) {
-        for (PlayerState p : players.values()) {
-            if (p.x == x && p.y == y && p.lives > 0) return true;
-        }
-        for (Enemy e : enemies) {
-            if (e.x == x && e.y == y && e.isActive) return true;
-        }
-        for (PatrolEnemy pe : patrolEnemies) {
-            if (pe.x == x && pe.y == y) return true;
+        for (int h = grid.first(x, y); h != OccupancyGrid.NONE; h = grid.next(h)) {
+            int ref = grid.ref(h);
+            switch (ref & REF_KIND_MASK) {
+                case REF_PLAYER:
+                    if (players.get(refIndex(ref)).lives > 0) return true;
+                    break;
+                case REF_ENEMY:
+                    if (enemies.active[refIndex(ref)]) return true;
+                    break;
+                default:
+                    return true;
+            }
         }
         return false;
     }
 
-    public synchronized void movePlayer(int playerId, Direction direction) {
+    private static int ref(int kind, int index) {
+        return index << 2 | kind;
+    }
+
+    private static int refIndex(int ref) {
+        return ref >>> 2;
+    }
+
+    private void addPatrol(int x, int y, PatrolAxis axis, PatrolDirection direction) {
+        int index = patrols.add(patrols.size, x, y, 0, axis.ordinal(), direction.ordinal());
+        patrols.cell[index] = grid.add(ref(REF_PATROL, index), x, y);
+    }
+
+    // Ставит игрока в индекс клеток или переносит его туда, где он сейчас стоит
+    private void trackPlayer(PlayerState player) {
+        Integer handle = playerHandles.get(player.id);
+        if (handle == null) {
+            playerHandles.put(player.id, grid.add(ref(REF_PLAYER, player.id), player.x, player.y));
+        } else {
+            grid.move(handle, player.x, player.y);
+        }
+    }
+
+    public void movePlayer(int playerId, Direction direction) {
         PlayerState player = players.get(playerId);
 
         if (player == null || !player.canMove() || player.lives <= 0) return;
@@ -232,6 +412,7 @@ public class GameWorld {
             player.y = newY;
             player.direction = direction; // Обновляем направление
             player.lastMoveTime = System.currentTimeMillis();
+            trackPlayer(player);
             checkTileCollisions(player);
             checkEnemyCollisions(player);
             checkPatrolEnemyCollisions(player);
@@ -240,14 +421,14 @@ public class GameWorld {
     }
 
     private boolean isValidMove(int x, int y) {
-        if (x < 0 || x >= map[0].length || y < 0 || y >= map.length) {
+        if (!map.contains(x, y)) {
             return false;
         }
-        return map[y][x].isWalkable();
+        return map.get(x, y).isWalkable();
     }
 
     private void checkTileCollisions(PlayerState player) {
-        TileType tile = map[player.y][player.x];
+        TileType tile = map.get(player.x, player.y);
 
         switch (tile) {
             case DIAMOND:
@@ -256,85 +437,62 @@ public class GameWorld {
 
             case TRAP:
                 player.loseLife();
-                broadcast(new Message(Message.ACTION, player.id,
-                        player.name + " попал в ловушку! Осталось жизней: " + player.lives));
+                emit(GameEvent.TRAP_HIT, player.id, player.lives, -1);
 
                 if (player.lives <= 0) {
-                    broadcast(new Message(Message.ACTION, player.id,
-                            player.name + " погиб! Уровень будет перезапущен через 3 секунды..."));
-                    new Timer().schedule(new TimerTask() {
-                        @Override
-                        public void run() {
-                            restartLevel();
-                        }
-                    }, 3000);
+                    emit(GameEvent.PLAYER_DIED, player.id, GameEvent.CAUSE_TRAP);
+                    requestRestart();
                 }
-                map[player.y][player.x] = TileType.FLOOR;
+                setTile(player.x, player.y, TileType.FLOOR);
                 break;
 
             case CHEST:
                 // Убираем логику с ключом, так как он не нужен
-                map[player.y][player.x] = TileType.FLOOR;
-                broadcast(new Message(Message.ACTION, player.id,
-                        player.name + " нашел сундук!"));
+                setTile(player.x, player.y, TileType.FLOOR);
+                emit(GameEvent.CHEST_FOUND, player.id, player.x, player.y);
                 break;
 
             case DOOR:
                 // Просто проверяем переход, ключ не нужен
-                broadcast(new Message(Message.ACTION, player.id,
-                        player.name + " у двери!"));
+                emit(GameEvent.AT_DOOR, player.id, player.x, player.y);
                 checkLevelTransition(); // Проверяем, готовы ли все к переходу
                 break;
         }
     }
 
     private void collectDiamond(int x, int y, PlayerState player) {
-        String diamondKey = x + "," + y;
-        if (collectedDiamonds.contains(diamondKey)) return;
+        if (!remainingDiamonds.remove(x, y)) return;
 
         player.addDiamond();
         collectedDiamondsCount++;
-        collectedDiamonds.add(diamondKey);
-        map[y][x] = TileType.FLOOR;
+        setTile(x, y, TileType.FLOOR);
 
+        int amount = 1;
         if (player.characterType.contains("Темный")) {
             player.addDiamond();
-            broadcast(new Message(Message.ACTION, player.id,
-                    player.name + " собрал 2 алмаза благодаря своей ловкости!"));
-        } else {
-            broadcast(new Message(Message.ACTION, player.id,
-                    player.name + " собрал алмаз! (" + collectedDiamondsCount + "/" + totalDiamonds + ")"));
+            amount = 2;
         }
+        emit(GameEvent.DIAMOND_COLLECTED, player.id, x, y, amount, collectedDiamondsCount, totalDiamonds);
 
         if (collectedDiamondsCount >= totalDiamonds) {
-            broadcast(new Message(Message.ACTION, 0,
-                    "💎 Все алмазы собраны! Идите к дверям!"));
+            emit(GameEvent.ALL_DIAMONDS_COLLECTED, 0);
             // Теперь проверяем, может быть игроки уже на дверях
             checkLevelTransition();
         }
     }
 
     private void checkEnemyCollisions(PlayerState player) {
-        long now = System.currentTimeMillis();
-
-        for (Enemy enemy : enemies) {
-            if (enemy.isActive && enemy.x == player.x && enemy.y == player.y) {
-                if (now - enemy.lastAttackTime >= ENEMY_ATTACK_COOLDOWN) {
-                    enemy.lastAttackTime = now;
-
+        for (int h = grid.first(player.x, player.y); h != OccupancyGrid.NONE; h = grid.next(h)) {
+            int ref = grid.ref(h);
+            if ((ref & REF_KIND_MASK) == REF_ENEMY && enemies.active[refIndex(ref)]) {
+                int enemy = refIndex(ref);
+                if (startCooldown(enemies, enemy, ENEMY_ATTACK_COOLDOWN)) {
                     player.loseLife();
-                    broadcast(new Message(Message.ACTION, player.id,
-                            enemy.type + " атаковал " + player.name + "! Осталось жизней: " + player.lives));
+                    emit(GameEvent.ENEMY_ATTACK, player.id, enemies.type[enemy], player.lives);
 
                     if (player.lives <= 0) {
-                        broadcast(new Message(Message.ACTION, player.id,
-                                player.name + " погиб! Уровень будет перезапущен через 3 секунды..."));
-                        new Timer().schedule(new TimerTask() {
-                            @Override
-                            public void run() {
-                                restartLevel();
-                            }
-                        }, 3000);
+                        emit(GameEvent.PLAYER_DIED, player.id, GameEvent.CAUSE_ENEMY);
+                        requestRestart();
                     }
                 }
                 break;
@@ -343,195 +501,221 @@ public class GameWorld {
     }
 
     private void checkPatrolEnemyCollisions(PlayerState player) {
-        long now = System.currentTimeMillis();
+        for (int h = grid.first(player.x, player.y); h != OccupancyGrid.NONE; h = grid.next(h)) {
+            int ref = grid.ref(h);
+            if ((ref & REF_KIND_MASK) == REF_PATROL) {
+                patrolHit(refIndex(ref), player);
+                break;
+            }
+        }
+    }
 
-        for (PatrolEnemy patrolEnemy : patrolEnemies) {
-            if (patrolEnemy.x == player.x && patrolEnemy.y == player.y) {
-                if (now - patrolEnemy.lastAttackTime >= ENEMY_ATTACK_COOLDOWN) {
-                    patrolEnemy.lastAttackTime = now;
+    private void patrolHit(int patrol, PlayerState player) {
+        if (!startCooldown(patrols, patrol, ENEMY_ATTACK_COOLDOWN)) return;
 
-                    player.loseLife();
-                    broadcast(new Message(Message.ACTION, player.id,
-                            player.name + " столкнулся с патрульным мобом! Осталось жизней: " + player.lives));
+        player.loseLife();
+        emit(GameEvent.PATROL_HIT, player.id, player.lives);
 
-                    if (player.lives <= 0) {
-                        broadcast(new Message(Message.ACTION, player.id,
-                                player.name + " погиб от патрульного моба! Уровень будет перезапущен через 3 секунды..."));
-                        new Timer().schedule(new TimerTask() {
-                            @Override
-                            public void run() {
-                                restartLevel();
-                            }
-                        }, 3000);
-                    }
-                }
-                break;
-            }
+        if (player.lives <= 0) {
+            emit(GameEvent.PLAYER_DIED, player.id, GameEvent.CAUSE_PATROL);
+            requestRestart();
         }
     }
 
+    /**
+     * Возвращает false, если у атакующего еще идет откат. Иначе запускает откат:
+     * снимет его задача колеса таймеров через cooldownMs.
+     */
+    private boolean startCooldown(EntityStore store, int index, long cooldownMs) {
+        if (store.coolingDown[index]) return false;
+        store.coolingDown[index] = true;
+        timers.schedule(toTicks(cooldownMs), () -> store.coolingDown[index] = false);
+        return true;
+    }
+
     private void initTraps() {
-        if (map == null || map.length == 0 || map[0].length == 0) return;
+        if (map == null || map.getWidth() == 0 || map.getHeight() == 0) return;
 
-        int trapX = map[0].length - 1;
-        int trapY = map.length / 2;
-        if (trapX >= 0 && trapX < map[0].length && trapY >= 0 && trapY < map.length) {
+        int trapX = map.getWidth() - 1;
+        int trapY = map.getHeight() / 2;
+        if (map.contains(trapX, trapY)) {
             Trap arrowTrap = new Trap(trapX, trapY, TrapType.PRESSURE, TrapAttack.ARROW, Direction.LEFT);
             traps.add(arrowTrap);
         }
 
-        int fireX = map[0].length / 2;
+        int fireX = map.getWidth() / 2;
         int fireY = 0;
-        if (fireX >= 0 && fireX < map[0].length && fireY >= 0 && fireY < map.length) {
+        if (map.contains(fireX, fireY)) {
             Trap fireTrap = new Trap(fireX, fireY, TrapType.TIMER, TrapAttack.FIRE, Direction.DOWN);
             traps.add(fireTrap);
         }
     }
 
-    private List<int[]> getTargetCells(Trap trap) {
-        List<int[]> cells = new ArrayList<>();
+    private void checkTrapCollisions(PlayerState player) {
+        if (player.lives <= 0) return;
 
-        for (int i = 1; i <= trap.range; i++) {
-            int targetX = trap.x;
-            int targetY = trap.y;
+        int end = trapCoverage.end(player.x, player.y);
+        for (int i = trapCoverage.start(player.x, player.y); i < end; i++) {
+            int trapId = trapCoverage.trapAt(i);
+            Trap trap = traps.get(trapId);
 
-            switch (trap.direction) {
-                case LEFT:
-                    targetX = trap.x - i;
-                    break;
-                case RIGHT:
-                    targetX = trap.x + i;
-                    break;
-                case UP:
-                    targetY = trap.y - i;
-                    break;
-                case DOWN:
-                    targetY = trap.y + i;
-                    break;
+            if (trap.type == TrapType.PRESSURE && !trap.active) {
+                // Срабатывание бьет всех, кто стоит на линии, включая наступившего
+                activateTrap(trapId);
+                return;
             }
-
-            if (targetX >= 0 && targetX < map[0].length &&
-                    targetY >= 0 && targetY < map.length) {
-                cells.add(new int[]{targetX, targetY});
+            if (trap.active) {
+                trapHit(trapId, player);
+                return;
             }
         }
-
-        return cells;
     }
 
-    private void updateTraps() {
-        long now = System.currentTimeMillis();
-
-        for (Trap trap : traps) {
-            if (trap.active) {
-                trap.deactivate(now);
-            }
+    private void activateTrap(int trapId) {
+        Trap trap = traps.get(trapId);
+        trap.active = true;
+        timers.schedule(toTicks(Trap.ACTIVE_DURATION), () -> deactivateTrap(trapId));
+        hitPlayersOnLine(trapId);
+    }
 
-            if (trap.type == TrapType.TIMER && trap.shouldActivate(now)) {
-                trap.activate(now);
-            }
+    // Нажимная ловушка срабатывает снова, пока на ее линии кто-то стоит: игрок, который
+    // встал под выстрел и замер, получает урон раз в DAMAGE_COOLDOWN, а не один раз
+    private void deactivateTrap(int trapId) {
+        Trap trap = traps.get(trapId);
+        trap.active = false;
+        if (trap.type == TrapType.PRESSURE && hasPlayerOnLine(trap)) {
+            activateTrap(trapId);
         }
     }
 
-    private void checkTrapCollisions(PlayerState player) {
-        if (player.lives <= 0) return;
-
-        long now = System.currentTimeMillis();
-
-        for (Trap trap : traps) {
-            if (trap.type == TrapType.PRESSURE && !trap.active) {
-                List<int[]> targetCells = getTargetCells(trap);
-                for (int[] cell : targetCells) {
-                    if (cell[0] == player.x && cell[1] == player.y) {
-                        trap.activate(now);
-                        break;
+    private void hitPlayersOnLine(int trapId) {
+        Trap trap = traps.get(trapId);
+        for (int i = 1; i <= trap.range; i++) {
+            int x = trap.x + trap.direction.dx * i;
+            int y = trap.y + trap.direction.dy * i;
+            for (int h = grid.first(x, y); h != OccupancyGrid.NONE; h = grid.next(h)) {
+                int ref = grid.ref(h);
+                if ((ref & REF_KIND_MASK) == REF_PLAYER) {
+                    PlayerState player = players.get(refIndex(ref));
+                    if (player.lives > 0) {
+                        trapHit(trapId, player);
                     }
                 }
             }
+        }
+    }
 
-            if (trap.active) {
-                List<int[]> targetCells = getTargetCells(trap);
-                for (int[] cell : targetCells) {
-                    if (cell[0] == player.x && cell[1] == player.y) {
-                        if (now - trap.lastDamageTime >= Trap.DAMAGE_COOLDOWN) {
-                            trap.lastDamageTime = now;
-
-                            player.loseLife();
-                            broadcast(new Message(Message.ACTION, player.id,
-                                    player.name + " попал в ловушку (" + trap.attack + ")! Осталось жизней: " + player.lives));
-
-                            if (player.lives <= 0) {
-                                broadcast(new Message(Message.ACTION, player.id,
-                                        player.name + " погиб от ловушки! Уровень будет перезапущен через 3 секунды..."));
-                                new Timer().schedule(new TimerTask() {
-                                    @Override
-                                    public void run() {
-                                        restartLevel();
-                                    }
-                                }, 3000);
-                            }
-                        }
-                        return;
-                    }
+    private boolean hasPlayerOnLine(Trap trap) {
+        for (int i = 1; i <= trap.range; i++) {
+            int x = trap.x + trap.direction.dx * i;
+            int y = trap.y + trap.direction.dy * i;
+            for (int h = grid.first(x, y); h != OccupancyGrid.NONE; h = grid.next(h)) {
+                int ref = grid.ref(h);
+                if ((ref & REF_KIND_MASK) == REF_PLAYER && players.get(refIndex(ref)).lives > 0) {
+                    return true;
                 }
             }
         }
+        return false;
     }
 
-    private synchronized void restartLevel() {
-        if (isRestarting) {
-            return;
-        }
+    private void trapHit(int trapId, PlayerState player) {
+        if (trapCoolingDown[trapId]) return;
+        trapCoolingDown[trapId] = true;
+        timers.schedule(toTicks(Trap.DAMAGE_COOLDOWN), () -> endTrapCooldown(trapId));
 
-        isRestarting = true;
-        broadcast(new Message(Message.ACTION, 0,
-                "Уровень перезапущен! Все игроки начинают заново."));
+        player.loseLife();
+        emit(GameEvent.TRAP_HIT, player.id, player.lives, traps.get(trapId).attack.ordinal());
 
-        loadLevel(currentLevel);
-        isRestarting = false;
+        if (player.lives <= 0) {
+            emit(GameEvent.PLAYER_DIED, player.id, GameEvent.CAUSE_TRAP);
+            requestRestart();
+        }
     }
 
-    public synchronized void updateEnemies() {
-        List<PlayerState> playerList = new ArrayList<>(players.values());
+    // Пока ловушка активна, оставшиеся на линии снова получают урон, как только спадает перезарядка
+    private void endTrapCooldown(int trapId) {
+        trapCoolingDown[trapId] = false;
+        if (traps.get(trapId).active) {
+            hitPlayersOnLine(trapId);
+        }
+    }
 
-        for (Enemy enemy : enemies) {
-            if (enemy.isActive) {
-                enemy.move(map, playerList);
+    /**
+     * Заводит периодические задачи уровня. Каждая задача после выполнения
+     * ставит себя заново; очистка колеса при загрузке уровня отменяет их все.
+     * Во время перехода задачи продолжают идти, но ничего не делают.
+     */
+    private void scheduleLevelTimers() {
+        for (int enemy = 0; enemy < enemies.size; enemy++) {
+            int speed = Enemy.EnemyType.fromId(enemies.type[enemy]).speed;
+            if (enemies.active[enemy] && speed > 0) {
+                scheduleEnemyStep(enemy, toTicks(1000 / speed));
+            }
+        }
+        for (int patrol = 0; patrol < patrols.size; patrol++) {
+            schedulePatrolStep(patrol);
+        }
+        for (int trapId = 0; trapId < traps.size(); trapId++) {
+            if (traps.get(trapId).type == TrapType.TIMER) {
+                scheduleTimerTrap(trapId);
             }
         }
+    }
+
+    private void scheduleEnemyStep(int enemy, long delayTicks) {
+        timers.schedule(delayTicks, () -> {
+            if (!enemies.active[enemy]) return;
+            if (phase != RoomPhase.TRANSITIONING) {
+                stepEnemy(enemy);
+            }
+            scheduleEnemyStep(enemy, delayTicks);
+        });
+    }
 
-        updatePatrolEnemies();
-        updateTraps();
-        checkTrapsAfterUpdate();
+    // Случайный шаг врага на соседнюю проходимую клетку
+    private void stepEnemy(int enemy) {
+        Direction direction = DIRECTIONS[ThreadLocalRandom.current().nextInt(DIRECTIONS.length)];
+        int newX = enemies.x[enemy] + direction.dx;
+        int newY = enemies.y[enemy] + direction.dy;
 
-        // Также проверяем переход после обновления врагов (на случай, если игроки уже на дверях)
-        checkLevelTransition();
+        if (isValidMove(newX, newY)) {
+            enemies.x[enemy] = newX;
+            enemies.y[enemy] = newY;
+            enemies.dir[enemy] = (byte) direction.ordinal();
+            grid.move(enemies.cell[enemy], newX, newY);
+        }
     }
 
-    private void checkTrapsAfterUpdate() {
-        for (PlayerState player : players.values()) {
-            if (player.lives > 0) {
-                checkTrapCollisions(player);
+    private void schedulePatrolStep(int patrol) {
+        timers.schedule(toTicks(PATROL_ENEMY_MOVE_DELAY), () -> {
+            if (phase != RoomPhase.TRANSITIONING) {
+                movePatrolEnemy(patrol);
+                checkPatrolEnemyHits(patrol);
             }
-        }
+            schedulePatrolStep(patrol);
+        });
+    }
+
+    private void scheduleTimerTrap(int trapId) {
+        timers.schedule(toTicks(Trap.TIMER_INTERVAL), () -> {
+            if (phase != RoomPhase.TRANSITIONING) {
+                activateTrap(trapId);
+            }
+            scheduleTimerTrap(trapId);
+        });
     }
 
     private void initPatrolEnemies() {
-        if (map != null && map.length > 0 && map[0].length > 0) {
-            int centerX = map[0].length / 2;
-            int centerY = map.length / 2;
+        if (map != null && map.getWidth() > 0 && map.getHeight() > 0) {
+            int centerX = map.getWidth() / 2;
+            int centerY = map.getHeight() / 2;
 
             for (int y = centerY - 2; y <= centerY + 2; y++) {
                 for (int x = centerX - 2; x <= centerX + 2; x++) {
-                    if (x >= 0 && x < map[0].length && y >= 0 && y < map.length) {
+                    if (map.contains(x, y)) {
                         if (isValidMove(x, y) && !isPositionOccupied(x, y)) {
-                            PatrolEnemy patrolEnemy = new PatrolEnemy();
-                            patrolEnemy.x = x;
-                            patrolEnemy.y = y;
-                            patrolEnemy.axis = PatrolAxis.HORIZONTAL;
-                            patrolEnemy.direction = PatrolDirection.POSITIVE;
-                            patrolEnemy.lastMoveTime = System.currentTimeMillis();
-                            patrolEnemies.add(patrolEnemy);
+                            addPatrol(x, y, PatrolAxis.HORIZONTAL, PatrolDirection.POSITIVE);
                             return;
                         }
                     }
@@ -540,97 +724,287 @@ public class GameWorld {
         }
     }
 
-    private void updatePatrolEnemies() {
-        long now = System.currentTimeMillis();
+    private void movePatrolEnemy(int patrol) {
+        int step = patrols.dir[patrol] == PatrolDirection.POSITIVE.ordinal() ? 1 : -1;
+        boolean horizontal = patrols.type[patrol] == PatrolAxis.HORIZONTAL.ordinal();
 
-        for (PatrolEnemy patrolEnemy : patrolEnemies) {
-            if (now - patrolEnemy.lastMoveTime < PATROL_ENEMY_MOVE_DELAY) {
-                continue;
-            }
+        int nextX = patrols.x[patrol] + (horizontal ? step : 0);
+        int nextY = patrols.y[patrol] + (horizontal ? 0 : step);
 
-            movePatrolEnemy(patrolEnemy);
-            patrolEnemy.lastMoveTime = now;
+        if (!isValidMove(nextX, nextY)) {
+            PatrolDirection reversed = step > 0 ? PatrolDirection.NEGATIVE : PatrolDirection.POSITIVE;
+            patrols.dir[patrol] = (byte) reversed.ordinal();
+            return;
         }
 
-        checkPatrolEnemyCollisionsAfterMove();
+        patrols.x[patrol] = nextX;
+        patrols.y[patrol] = nextY;
+        grid.move(patrols.cell[patrol], nextX, nextY);
     }
 
-    private void movePatrolEnemy(PatrolEnemy patrolEnemy) {
-        int dx = 0;
-        int dy = 0;
+    // После шага патруля проверяем только его клетку
+    private void checkPatrolEnemyHits(int patrol) {
+        for (int h = grid.first(patrols.x[patrol], patrols.y[patrol]); h != OccupancyGrid.NONE; h = grid.next(h)) {
+            int ref = grid.ref(h);
+            if ((ref & REF_KIND_MASK) == REF_PLAYER) {
+                PlayerState player = players.get(refIndex(ref));
+                if (player.lives > 0) {
+                    patrolHit(patrol, player);
+                }
+            }
+        }
+    }
 
-        if (patrolEnemy.axis == PatrolAxis.HORIZONTAL) {
-            dx = patrolEnemy.direction == PatrolDirection.POSITIVE ? 1 : -1;
-        } else {
-            dy = patrolEnemy.direction == PatrolDirection.POSITIVE ? 1 : -1;
+    public void removePlayer(int playerId) {
+        players.remove(playerId);
+        fieldsOfView.remove(playerId);
+        Integer handle = playerHandles.remove(playerId);
+        if (handle != null) {
+            grid.remove(handle);
         }
+    }
 
-        int nextX = patrolEnemy.x + dx;
-        int nextY = patrolEnemy.y + dy;
+    public int getCurrentLevel() {
+        return currentLevel;
+    }
 
-        if (!isValidMove(nextX, nextY)) {
-            patrolEnemy.direction = patrolEnemy.direction == PatrolDirection.POSITIVE
-                    ? PatrolDirection.NEGATIVE
-                    : PatrolDirection.POSITIVE;
-            return;
-        }
+    public int getMapVersion() {
+        return mapVersion;
+    }
 
-        patrolEnemy.x = nextX;
-        patrolEnemy.y = nextY;
+    public TileMap getMap() {
+        return map;
     }
 
-    private void checkPatrolEnemyCollisionsAfterMove() {
-        long now = System.currentTimeMillis();
+    public byte[] encodeSnapshot(int tick) {
+        byte[] snapshot = new byte[snapshotSize()];
+        writeSnapshot(tick, snapshot);
+        return snapshot;
+    }
 
-        for (PatrolEnemy patrolEnemy : patrolEnemies) {
-            for (PlayerState player : players.values()) {
-                if (player.lives <= 0) continue;
+    public int snapshotSize() {
+        return GameStateCodec.encodedSize(players.size(), enemies.size, patrols.size, traps.size());
+    }
 
-                if (player.x == patrolEnemy.x && player.y == patrolEnemy.y) {
-                    if (now - patrolEnemy.lastAttackTime >= ENEMY_ATTACK_COOLDOWN) {
-                        patrolEnemy.lastAttackTime = now;
+    /**
+     * Пишет полный снимок мира в формате GameStateCodec прямо из массивов
+     * сущностей, без промежуточных объектов. Длина target - ровно snapshotSize().
+     */
+    public void writeSnapshot(int tick, byte[] target) {
+        ByteBuffer buffer = ByteBuffer.wrap(target);
+        putHeaderAndPlayers(buffer, tick);
+
+        GameStateCodec.putSectionSize(buffer, enemies.size);
+        for (int i = 0; i < enemies.size; i++) {
+            putEnemy(buffer, i);
+        }
 
-                        player.loseLife();
-                        broadcast(new Message(Message.ACTION, player.id,
-                                player.name + " столкнулся с патрульным мобом! Осталось жизней: " + player.lives));
+        GameStateCodec.putSectionSize(buffer, patrols.size);
+        for (int i = 0; i < patrols.size; i++) {
+            putPatrol(buffer, i);
+        }
 
-                        if (player.lives <= 0) {
-                            broadcast(new Message(Message.ACTION, player.id,
-                                    player.name + " погиб от патрульного моба! Уровень будет перезапущен через 3 секунды..."));
-                            new Timer().schedule(new TimerTask() {
-                                @Override
-                                public void run() {
-                                    restartLevel();
-                                }
-                            }, 3000);
-                        }
+        GameStateCodec.putSectionSize(buffer, traps.size());
+        for (int i = 0; i < traps.size(); i++) {
+            GameStateCodec.putTrap(buffer, i, traps.get(i));
+        }
+    }
+
+    /**
+     * Пишет снимок мира для игрока viewerId в новый слот ring и возвращает слот; публикует
+     * вызывающий. Враги и патрульные попадают в снимок, только если игрок их видит
+     * (FieldOfView радиуса radius), ловушки - если стоят не дальше radius клеток от игрока
+     * по каждой оси с запасом на дальность атаки; игроки комнаты попадают все.
+     * Если radius <= 0 или игрока нет в мире, снимок полный.
+     *
+     * Перебираются только клетки квадрата поля зрения и ловушки около него. Снимок собирается
+     * за один проход в буфере мира, а его размер известен только после прохода - поэтому
+     * готовые байты копируются в слот.
+     */
+    byte[] writeSnapshot(int tick, SnapshotRing ring, int viewerId, int radius) {
+        FieldOfView view = fieldOfView(viewerId, radius);
+        if (view == null) {
+            byte[] snapshot = ring.claim(snapshotSize());
+            writeSnapshot(tick, snapshot);
+            return snapshot;
+        }
+
+        int capacity = snapshotSize();
+        if (snapshotScratch.capacity() < capacity) {
+            snapshotScratch = ByteBuffer.allocate(capacity);
+        }
+        if (enemyScratch.length < enemies.size) {
+            enemyScratch = new long[enemies.size];
+        }
+        if (patrolScratch.length < patrols.size) {
+            patrolScratch = new long[patrols.size];
+        }
+        if (trapScratch.length < traps.size()) {
+            trapScratch = new int[traps.size()];
+        }
+
+        // Ключ (id << 32 | индекс): после сортировки записи секции идут по возрастанию id
+        int minX = Math.max(view.getOriginX() - radius, 0);
+        int minY = Math.max(view.getOriginY() - radius, 0);
+        int maxX = Math.min(view.getOriginX() + radius, map.getWidth() - 1);
+        int maxY = Math.min(view.getOriginY() + radius, map.getHeight() - 1);
+        int enemyCount = 0;
+        int patrolCount = 0;
+        for (int y = minY; y <= maxY; y++) {
+            for (int x = minX; x <= maxX; x++) {
+                int h = grid.first(x, y);
+                if (h == OccupancyGrid.NONE || !view.isVisible(x, y)) continue;
+
+                for (; h != OccupancyGrid.NONE; h = grid.next(h)) {
+                    int ref = grid.ref(h);
+                    int index = refIndex(ref);
+                    switch (ref & REF_KIND_MASK) {
+                        case REF_ENEMY:
+                            enemyScratch[enemyCount++] = (long) enemies.id[index] << 32 | index;
+                            break;
+                        case REF_PATROL:
+                            patrolScratch[patrolCount++] = (long) patrols.id[index] << 32 | index;
+                            break;
+                        default:
+                            break;
                     }
                 }
             }
         }
+        Arrays.sort(enemyScratch, 0, enemyCount);
+        Arrays.sort(patrolScratch, 0, patrolCount);
+
+        int margin = radius + trapCoverage.maxRange();
+        int trapCount = trapCoverage.trapsIn(view.getOriginX() - margin, view.getOriginY() - margin,
+                view.getOriginX() + margin, view.getOriginY() + margin, trapScratch);
+
+        ByteBuffer buffer = snapshotScratch.clear();
+        putHeaderAndPlayers(buffer, tick);
+
+        GameStateCodec.putSectionSize(buffer, enemyCount);
+        for (int k = 0; k < enemyCount; k++) {
+            putEnemy(buffer, (int) enemyScratch[k]);
+        }
+
+        GameStateCodec.putSectionSize(buffer, patrolCount);
+        for (int k = 0; k < patrolCount; k++) {
+            putPatrol(buffer, (int) patrolScratch[k]);
+        }
+
+        int countPosition = buffer.position();
+        GameStateCodec.putSectionSize(buffer, 0);
+        int count = 0;
+        for (int k = 0; k < trapCount; k++) {
+            Trap trap = traps.get(trapScratch[k]);
+            if (!view.isWithin(trap.x, trap.y, trap.range)) continue;
+            GameStateCodec.putTrap(buffer, trapScratch[k], trap);
+            count++;
+        }
+        buffer.putShort(countPosition, (short) count);
+
+        byte[] snapshot = ring.claim(buffer.position());
+        System.arraycopy(buffer.array(), 0, snapshot, 0, snapshot.length);
+        return snapshot;
     }
 
-    public synchronized void removePlayer(int playerId) {
-        players.remove(playerId);
+    private void putHeaderAndPlayers(ByteBuffer buffer, int tick) {
+        GameStateCodec.putHeader(buffer, tick, currentLevel, mapVersion, collectedDiamondsCount, totalDiamonds,
+                levelComplete, phase == RoomPhase.TRANSITIONING, levelStartTime, levelTransitionStartTime);
+
+        GameStateCodec.putSectionSize(buffer, players.size());
+        for (PlayerState player : players.values()) {
+            GameStateCodec.putPlayer(buffer, player);
+        }
+    }
+
+    private void putEnemy(ByteBuffer buffer, int i) {
+        GameStateCodec.putEnemy(buffer, enemies.id[i], enemies.type[i], enemies.x[i], enemies.y[i],
+                enemies.hp[i], DIRECTIONS[enemies.dir[i]], enemies.active[i]);
+    }
+
+    private void putPatrol(ByteBuffer buffer, int i) {
+        GameStateCodec.putPatrol(buffer, patrols.id[i], patrols.x[i], patrols.y[i], patrols.type[i], patrols.dir[i]);
+    }
+
+    /**
+     * Поле зрения игрока, пересчитанное под его текущую позицию и карту.
+     * null - если radius <= 0 или игрока нет в мире: фильтра нет, снимок полный.
+     */
+    FieldOfView fieldOfView(int playerId, int radius) {
+        PlayerState player = radius > 0 ? players.get(playerId) : null;
+        if (player == null) return null;
+
+        FieldOfView fieldOfView = fieldsOfView.computeIfAbsent(playerId, id -> new FieldOfView(radius));
+        fieldOfView.update(map, player.x, player.y);
+        return fieldOfView;
+    }
+
+    /**
+     * Алмазы, которые игрок видит, - номера клеток (y * ширина + x). Перебираются только
+     * фрагменты множества несобранных алмазов под квадратом поля зрения.
+     * Если набор не изменился, возвращается previous, новый массив не создается.
+     */
+    int[] visibleDiamonds(FieldOfView view, int[] previous) {
+        int radius = view.getRadius();
+        int originX = view.getOriginX();
+        int originY = view.getOriginY();
+        int width = map.getWidth();
+        diamondScratchSize = 0;
+        remainingDiamonds.forEachIn(originX - radius, originY - radius, originX + radius, originY + radius, cell -> {
+            if (!view.isVisible(cell % width, cell / width)) return;
+            if (diamondScratchSize == diamondScratch.length) {
+                diamondScratch = Arrays.copyOf(diamondScratch, diamondScratch.length * 2);
+            }
+            diamondScratch[diamondScratchSize++] = cell;
+        });
+
+        if (Arrays.equals(previous, 0, previous.length, diamondScratch, 0, diamondScratchSize)) {
+            return previous;
+        }
+        return Arrays.copyOf(diamondScratch, diamondScratchSize);
     }
 
-    public synchronized GameState getGameState() {
+    /**
+     * Копия состояния мира объектами. В игровом цикле не используется -
+     * там снимок пишет writeSnapshot.
+     */
+    public GameState getGameState() {
+        List<Enemy> enemyList = new ArrayList<>(enemies.size);
+        for (int i = 0; i < enemies.size; i++) {
+            Enemy enemy = new Enemy(enemies.id[i], Enemy.EnemyType.fromId(enemies.type[i]), enemies.x[i], enemies.y[i]);
+            enemy.health = enemies.hp[i];
+            enemy.direction = DIRECTIONS[enemies.dir[i]];
+            enemy.isActive = enemies.active[i];
+            enemyList.add(enemy);
+        }
+
+        List<PatrolEnemy> patrolList = new ArrayList<>(patrols.size);
+        for (int i = 0; i < patrols.size; i++) {
+            patrolList.add(new PatrolEnemy(patrols.x[i], patrols.y[i],
+                    PATROL_AXES[patrols.type[i]], PATROL_DIRECTIONS[patrols.dir[i]]));
+        }
+
         return new GameState(
                 new ArrayList<>(players.values()),
-                new ArrayList<>(enemies),
-                new ArrayList<>(patrolEnemies),
+                enemyList,
+                patrolList,
                 new ArrayList<>(traps),
-                map,
+                map.toArray(),
+                mapVersion,
                 collectedDiamondsCount,
                 totalDiamonds,
                 currentLevel,
                 levelComplete,
                 levelStartTime,
-                isLevelTransitioning,
+                phase == RoomPhase.TRANSITIONING,
                 levelTransitionStartTime
         );
     }
 
+    private void emit(int code, int playerId, int... args) {
+        broadcast(new Message(Message.EVENT, playerId, new GameEvent(code, playerId, args)));
+    }
+
     private void broadcast(Message message) {
         if (broadcastCallback != null) {
             broadcastCallback.accept(message);
@@ -641,6 +1015,17 @@ public class GameWorld {
         this.broadcastCallback = callback;
     }
 
+    public void setMapListener(MapListener listener) {
+        this.mapListener = listener;
+    }
+
+    // Карта уходит клиентам один раз при загрузке уровня, дальше - только изменения отдельных клеток
+    public interface MapListener {
+        void onLevelLoaded(int level, int mapVersion, TileMap map);
+
+        void onTileChanged(int mapVersion, int x, int y, TileType tile);
+    }
+
     public static class GameState implements java.io.Serializable {
         private static final long serialVersionUID = 1L;
 
@@ -649,6 +1034,7 @@ public class GameWorld {
         public final List<PatrolEnemy> patrolEnemies;
         public final List<Trap> traps;
         public final TileType[][] map;
+        public final int mapVersion;
         public final int collectedDiamonds;
         public final int totalDiamonds;
         public final int currentLevel;
@@ -658,7 +1044,7 @@ public class GameWorld {
         public final long levelTransitionStartTime;
 
         public GameState(List<PlayerState> players, List<Enemy> enemies, List<PatrolEnemy> patrolEnemies,
-                         List<Trap> traps, TileType[][] map,
+                         List<Trap> traps, TileType[][] map, int mapVersion,
                          int collectedDiamonds, int totalDiamonds, int currentLevel,
                          boolean levelComplete, long levelStartTime,
                          boolean isLevelTransitioning, long levelTransitionStartTime) {
@@ -667,6 +1053,7 @@ public class GameWorld {
             this.patrolEnemies = patrolEnemies;
             this.traps = traps;
             this.map = map;
+            this.mapVersion = mapVersion;
             this.collectedDiamonds = collectedDiamonds;
             this.totalDiamonds = totalDiamonds;
             this.currentLevel = currentLevel;
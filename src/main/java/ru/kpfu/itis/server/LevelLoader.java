@@ -6,12 +6,20 @@ import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class LevelLoader {
     private static final Logger logger = LoggerFactory.getLogger(LevelLoader.class);
 
+    // Разобранные уровни: файл читается один раз, базовый слой карты и шаблоны сущностей
+    // общие на весь сервер, комнаты получают копии только того, что меняют
+    private static final Map<Integer, GeneratedLevel> templates = new ConcurrentHashMap<>();
+
     public static class GeneratedLevel {
-        public TileType[][] map;
+        // Карта, пока уровень читается из файла
+        public TileMap.Builder map;
+        // Общий неизменяемый слой карты; заполняется при разборе уровня
+        public TileMap tiles;
         public List<int[]> startPositions;
         public List<Enemy> enemies;
         public List<PatrolEnemy> patrolEnemies;
@@ -19,22 +27,56 @@ public class LevelLoader {
         public int totalDiamonds;
 
         public GeneratedLevel(int width, int height) {
-            map = new TileType[height][width];
+            map = TileMap.builder(width, height, TileType.FLOOR);
             startPositions = new ArrayList<>();
             enemies = new ArrayList<>();
             patrolEnemies = new ArrayList<>();
             traps = new ArrayList<>();
             totalDiamonds = 0;
+        }
 
-            for (int y = 0; y < height; y++) {
-                for (int x = 0; x < width; x++) {
-                    map[y][x] = TileType.FLOOR;
-                }
+        /**
+         * Уровень для одной комнаты. Карта, стартовые позиции, враги и патрули общие:
+         * комната их только читает (враги и патрули переносятся в ее массивы).
+         * Ловушки копируются - комната меняет их состояние.
+         */
+        private GeneratedLevel copyForRoom() {
+            GeneratedLevel copy = new GeneratedLevel(this);
+            copy.traps = new ArrayList<>(traps.size());
+            for (Trap trap : traps) {
+                copy.traps.add(new Trap(trap.x, trap.y, trap.type, trap.attack, trap.direction));
             }
+            return copy;
+        }
+
+        private GeneratedLevel(GeneratedLevel template) {
+            tiles = template.tiles;
+            startPositions = template.startPositions;
+            enemies = template.enemies;
+            patrolEnemies = template.patrolEnemies;
+            totalDiamonds = template.totalDiamonds;
         }
     }
 
     public static GeneratedLevel loadLevel(int levelNum) {
+        return templates.computeIfAbsent(levelNum, LevelLoader::parseTemplate).copyForRoom();
+    }
+
+    // Читает уровень и замораживает его: карта собирается, списки становятся неизменяемыми
+    private static GeneratedLevel parseTemplate(int levelNum) {
+        GeneratedLevel level = readLevel(levelNum);
+        level.tiles = level.map.build();
+        level.map = null;
+        level.startPositions = List.copyOf(level.startPositions);
+        level.enemies = List.copyOf(level.enemies);
+        level.patrolEnemies = List.copyOf(level.patrolEnemies);
+        level.traps = List.copyOf(level.traps);
+        logger.info("Карта уровня {}: {}x{}, отдельных фрагментов {}", levelNum,
+                level.tiles.getWidth(), level.tiles.getHeight(), level.tiles.distinctChunkCount());
+        return level;
+    }
+
+    private static GeneratedLevel readLevel(int levelNum) {
         String[] possiblePaths = {
                 "levels/level" + levelNum + ".txt",
                 "src/main/resources/levels/level" + levelNum + ".txt",
@@ -54,7 +96,7 @@ public class LevelLoader {
                     reader.close();
                     GeneratedLevel level = parseLevel(lines);
                     if (level != null) {
-                        logger.info("Уровень {} успешно загружен. Размер: {}x{}", levelNum, level.map[0].length, level.map.length);
+                        logger.info("Уровень {} успешно загружен. Размер: {}x{}", levelNum, level.map.getWidth(), level.map.getHeight());
                         return level;
                     }
                 } catch (IOException e) {
@@ -105,48 +147,48 @@ public class LevelLoader {
 
                 switch (c) {
                     case '#':
-                        level.map[y][x] = TileType.WALL;
+                        level.map.set(x, y, TileType.WALL);
                         break;
                     case '@':
-                        level.map[y][x] = TileType.FLOOR;
+                        level.map.set(x, y, TileType.FLOOR);
                         level.startPositions.add(new int[]{x, y});
                         logger.debug("Стартовая позиция @: {},{}", x, y);
                         break;
                     case '$':
-                        level.map[y][x] = TileType.DIAMOND;
+                        level.map.set(x, y, TileType.DIAMOND);
                         level.totalDiamonds++;
                         break;
                     case 'D':
-                        level.map[y][x] = TileType.DOOR;
+                        level.map.set(x, y, TileType.DOOR);
                         logger.debug("Дверь D: {},{}", x, y);
                         break;
                     case 'T':
-                        level.map[y][x] = TileType.TRAP;
+                        level.map.set(x, y, TileType.TRAP);
                         break;
                     case 'C':
-                        level.map[y][x] = TileType.CHEST;
+                        level.map.set(x, y, TileType.CHEST);
                         break;
                     case 'B':
-                        level.map[y][x] = TileType.BUTTON;
+                        level.map.set(x, y, TileType.BUTTON);
                         break;
                     case 'E':
-                        level.map[y][x] = TileType.FLOOR;
+                        level.map.set(x, y, TileType.FLOOR);
                         level.enemies.add(new Enemy(enemyId++, Enemy.EnemyType.SKELETON, x, y));
                         logger.debug("Враг E (Скелет): {},{}", x, y);
                         break;
                     case 'G':
-                        level.map[y][x] = TileType.FLOOR;
+                        level.map.set(x, y, TileType.FLOOR);
                         level.enemies.add(new Enemy(enemyId++, Enemy.EnemyType.GHOST, x, y));
                         logger.debug("Враг G (Призрак): {},{}", x, y);
                         break;
                     case 'F':
-                        level.map[y][x] = TileType.FLOOR;
+                        level.map.set(x, y, TileType.FLOOR);
                         level.enemies.add(new Enemy(enemyId++, Enemy.EnemyType.BAT, x, y));
                         logger.debug("Враг F (Летучая мышь): {},{}", x, y);
                         break;
 
                     case 'P':
-                        level.map[y][x] = TileType.FLOOR;
+                        level.map.set(x, y, TileType.FLOOR);
                         PatrolEnemy patrolH = new PatrolEnemy();
                         patrolH.x = x;
                         patrolH.y = y;
@@ -157,7 +199,7 @@ public class LevelLoader {
                         logger.debug("Патрульный моб P (горизонтально): {},{}", x, y);
                         break;
                     case 'p':
-                        level.map[y][x] = TileType.FLOOR;
+                        level.map.set(x, y, TileType.FLOOR);
                         PatrolEnemy patrolV = new PatrolEnemy();
                         patrolV.x = x;
                         patrolV.y = y;
@@ -169,51 +211,51 @@ public class LevelLoader {
                         break;
 
                     case '<':
-                        level.map[y][x] = TileType.WALL;  
+                        level.map.set(x, y, TileType.WALL);  
                         level.traps.add(new Trap(x, y, TrapType.PRESSURE, TrapAttack.ARROW, Direction.LEFT));
                         logger.debug("Ловушка < (стрела влево): {},{}", x, y);
                         break;
                     case '>':
-                        level.map[y][x] = TileType.WALL;
+                        level.map.set(x, y, TileType.WALL);
                         level.traps.add(new Trap(x, y, TrapType.PRESSURE, TrapAttack.ARROW, Direction.RIGHT));
                         logger.debug("Ловушка > (стрела вправо): {},{}", x, y);
                         break;
                     case '^':
-                        level.map[y][x] = TileType.WALL;
+                        level.map.set(x, y, TileType.WALL);
                         level.traps.add(new Trap(x, y, TrapType.PRESSURE, TrapAttack.ARROW, Direction.UP));
                         logger.debug("Ловушка ^ (стрела вверх): {},{}", x, y);
                         break;
                     case 'v':
                     case 'V':
-                        level.map[y][x] = TileType.WALL;
+                        level.map.set(x, y, TileType.WALL);
                         level.traps.add(new Trap(x, y, TrapType.PRESSURE, TrapAttack.ARROW, Direction.DOWN));
                         logger.debug("Ловушка v (стрела вниз): {},{}", x, y);
                         break;
 
                     case '[':
-                        level.map[y][x] = TileType.WALL;
+                        level.map.set(x, y, TileType.WALL);
                         level.traps.add(new Trap(x, y, TrapType.TIMER, TrapAttack.FIRE, Direction.LEFT));
                         logger.debug("Ловушка [ (пламя влево): {},{}", x, y);
                         break;
                     case ']':
-                        level.map[y][x] = TileType.WALL;
+                        level.map.set(x, y, TileType.WALL);
                         level.traps.add(new Trap(x, y, TrapType.TIMER, TrapAttack.FIRE, Direction.RIGHT));
                         logger.debug("Ловушка ] (пламя вправо): {},{}", x, y);
                         break;
                     case '{':
-                        level.map[y][x] = TileType.WALL;
+                        level.map.set(x, y, TileType.WALL);
                         level.traps.add(new Trap(x, y, TrapType.TIMER, TrapAttack.FIRE, Direction.UP));
                         logger.debug("Ловушка {{ (пламя вверх): {},{}", x, y);
                         break;
                     case '}':
-                        level.map[y][x] = TileType.WALL;
+                        level.map.set(x, y, TileType.WALL);
                         level.traps.add(new Trap(x, y, TrapType.TIMER, TrapAttack.FIRE, Direction.DOWN));
                         logger.debug("Ловушка }} (пламя вниз): {},{}", x, y);
                         break;
                     case ' ':
                     case '.':
                     default:
-                        level.map[y][x] = TileType.FLOOR;
+                        level.map.set(x, y, TileType.FLOOR);
                 }
             }
         }
@@ -234,7 +276,7 @@ public class LevelLoader {
         for (int y = 0; y < height; y++) {
             for (int x = 0; x < width; x++) {
                 if (x == 0 || x == width - 1 || y == 0 || y == height - 1) {
-                    level.map[y][x] = TileType.WALL;
+                    level.map.set(x, y, TileType.WALL);
                 }
             }
         }
@@ -245,15 +287,15 @@ public class LevelLoader {
 
         for (int x = 5; x < 15; x += 3) {
             for (int y = 5; y < 15; y += 3) {
-                if (level.map[y][x] == TileType.FLOOR) {
-                    level.map[y][x] = TileType.DIAMOND;
+                if (level.map.get(x, y) == TileType.FLOOR) {
+                    level.map.set(x, y, TileType.DIAMOND);
                     level.totalDiamonds++;
                 }
             }
         }
 
-        level.map[height - 2][width - 2] = TileType.DOOR;
-        level.map[1][width - 2] = TileType.DOOR;
+        level.map.set(width - 2, height - 2, TileType.DOOR);
+        level.map.set(width - 2, 1, TileType.DOOR);
 
         level.enemies.add(new Enemy(1, Enemy.EnemyType.BAT, 5, 5));
         level.enemies.add(new Enemy(2, Enemy.EnemyType.SKELETON, width - 5, height - 5));
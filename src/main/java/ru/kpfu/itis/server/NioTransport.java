@@ -0,0 +1,346 @@
+package ru.kpfu.itis.server;
+
+import ru.kpfu.itis.protocol.EncodedFrame;
+import ru.kpfu.itis.protocol.FrameDecoder;
+import ru.kpfu.itis.protocol.GameMessage;
+import ru.kpfu.itis.protocol.ProtocolException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Неблокирующий транспорт на java.nio: один поток принимает подключения,
+ * несколько I/O-потоков с собственными Selector читают и пишут все соединения.
+ * Исходящие кадры сначала пишутся сразу из вызывающего потока, а остаток
+ * дописывается I/O-потоком по OP_WRITE.
+ */
+class NioTransport implements ServerTransport {
+    private static final Logger logger = LoggerFactory.getLogger(NioTransport.class);
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    // Клиент, у которого скопилось столько неотправленных байт, считается зависшим
+    private static final int MAX_PENDING_BYTES = 4 * 1024 * 1024;
+
+    private final GameServer server;
+    private final ServerSocketChannel serverChannel;
+    private final Selector acceptSelector;
+    private final IoWorker[] workers;
+    private Thread acceptThread;
+    private volatile boolean running = false;
+    private int nextWorker = 0;
+
+    NioTransport(GameServer server, int port, int ioThreads) throws IOException {
+        this.server = server;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+
+        acceptSelector = Selector.open();
+        serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+        workers = new IoWorker[Math.max(1, ioThreads)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new IoWorker(i);
+        }
+    }
+
+    static int defaultIoThreads() {
+        return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    /**
+     * Запись в неблокирующий канал не ждёт сеть, поэтому очередь клиента пишется прямо
+     * в вызывающем потоке, а при заполненном буфере сокета досылается I/O-потоком.
+     */
+    @Override
+    public Executor writerExecutor() {
+        return Runnable::run;
+    }
+
+    @Override
+    public void start() {
+        running = true;
+        for (IoWorker worker : workers) {
+            worker.thread.start();
+        }
+        acceptThread = new Thread(this::acceptLoop, "nio-accept");
+        acceptThread.start();
+        logger.info("NIO транспорт запущен, I/O потоков: {}", workers.length);
+    }
+
+    private void acceptLoop() {
+        try {
+            while (running) {
+                acceptSelector.select();
+                acceptSelector.selectedKeys().clear();
+
+                SocketChannel channel;
+                while ((channel = serverChannel.accept()) != null) {
+                    try {
+                        channel.configureBlocking(false);
+                        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                        workers[nextWorker].register(channel);
+                        nextWorker = (nextWorker + 1) % workers.length;
+                    } catch (IOException e) {
+                        logger.warn("Не удалось настроить подключение", e);
+                        closeQuietly(channel);
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) {
+                logger.error("Ошибка приема подключения", e);
+            }
+        }
+        logger.info("Сервер прекратил прием подключений");
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        closeQuietly(serverChannel);
+        try {
+            acceptSelector.close();
+        } catch (IOException e) {
+            logger.debug("Ошибка при закрытии селектора", e);
+        }
+        for (IoWorker worker : workers) {
+            worker.selector.wakeup();
+        }
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.debug("Ошибка при закрытии канала", e);
+        }
+    }
+
+    private class IoWorker implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        final Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<>();
+        final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        IoWorker(int index) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "nio-io-" + index);
+        }
+
+        void register(SocketChannel channel) {
+            registrations.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    registerPending();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+
+                        ChannelConnection connection = (ChannelConnection) key.attachment();
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                logger.error("Ошибка I/O потока {}", thread.getName(), e);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((ChannelConnection) key.attachment()).connectionLost();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    logger.debug("Ошибка при закрытии селектора", e);
+                }
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = registrations.poll()) != null) {
+                ChannelConnection connection = new ChannelConnection(channel, this);
+                try {
+                    connection.attach(channel.register(selector, SelectionKey.OP_READ, connection));
+                } catch (IOException e) {
+                    logger.warn("Не удалось зарегистрировать подключение", e);
+                    connection.close();
+                    continue;
+                }
+                connection.handler = server.openSession(connection);
+            }
+        }
+    }
+
+    private static class ChannelConnection implements ClientConnection {
+        private final SocketChannel channel;
+        private final IoWorker worker;
+        private final FrameDecoder decoder = new FrameDecoder();
+        private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+        private int pendingBytes = 0;
+        private boolean writeArmed = false;
+        private SelectionKey key;
+        private volatile boolean closed = false;
+        private volatile Runnable writableListener;
+        GameServer.ClientHandler handler;
+
+        ChannelConnection(SocketChannel channel, IoWorker worker) {
+            this.channel = channel;
+            this.worker = worker;
+        }
+
+        synchronized void attach(SelectionKey key) {
+            this.key = key;
+            updateInterest();
+        }
+
+        @Override
+        public void send(EncodedFrame frame) throws IOException {
+            synchronized (this) {
+                if (closed) {
+                    throw new ClosedChannelException();
+                }
+                if (pendingBytes + frame.size() > MAX_PENDING_BYTES) {
+                    throw new IOException("Клиент не успевает принимать данные");
+                }
+
+                outbound.add(frame.asByteBuffer());
+                pendingBytes += frame.size();
+                if (!writeArmed) {
+                    flush();
+                }
+            }
+        }
+
+        void onReadable(ByteBuffer readBuffer) {
+            int read;
+            try {
+                readBuffer.clear();
+                read = channel.read(readBuffer);
+            } catch (IOException e) {
+                logger.warn("Соединение с клиентом {} разорвано: {}", getRemoteAddress(), e.getMessage());
+                connectionLost();
+                return;
+            }
+
+            if (read == -1) {
+                logger.info("Клиент {} отключился (конец потока)", getRemoteAddress());
+                connectionLost();
+                return;
+            }
+
+            readBuffer.flip();
+            try {
+                decoder.feed(readBuffer);
+                GameMessage message;
+                while (handler != null && handler.isConnected() && (message = decoder.nextFrame()) != null) {
+                    handler.onMessage(message);
+                }
+            } catch (ProtocolException e) {
+                if (handler != null) {
+                    handler.onProtocolError(e);
+                }
+                connectionLost();
+            }
+        }
+
+        void onWritable() {
+            boolean drained;
+            try {
+                synchronized (this) {
+                    flush();
+                    drained = outbound.isEmpty();
+                }
+            } catch (IOException e) {
+                logger.warn("Ошибка отправки клиенту {}: {}", getRemoteAddress(), e.getMessage());
+                connectionLost();
+                return;
+            }
+
+            Runnable listener = writableListener;
+            if (drained && listener != null) {
+                listener.run();
+            }
+        }
+
+        @Override
+        public synchronized boolean isBackedUp() {
+            return !outbound.isEmpty();
+        }
+
+        @Override
+        public void setWritableListener(Runnable listener) {
+            this.writableListener = listener;
+        }
+
+        private void flush() throws IOException {
+            while (!outbound.isEmpty()) {
+                ByteBuffer buffer = outbound.peek();
+                pendingBytes -= channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    break;
+                }
+                outbound.poll();
+            }
+            updateInterest();
+        }
+
+        private void updateInterest() {
+            boolean needWrite = !outbound.isEmpty();
+            if (key == null || !key.isValid() || needWrite == writeArmed) {
+                return;
+            }
+            writeArmed = needWrite;
+            key.interestOps(needWrite ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            if (needWrite && Thread.currentThread() != worker.thread) {
+                worker.selector.wakeup();
+            }
+        }
+
+        void connectionLost() {
+            close();
+            if (handler != null) {
+                handler.connectionLost();
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            closeQuietly(channel);
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            try {
+                return String.valueOf(channel.getRemoteAddress());
+            } catch (IOException e) {
+                return "?";
+            }
+        }
+    }
+}
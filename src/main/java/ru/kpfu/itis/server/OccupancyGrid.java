@@ -0,0 +1,156 @@
+package ru.kpfu.itis.server;
+
+import ru.kpfu.itis.common.TileMap;
+
+import java.util.Arrays;
+
+/**
+ * Пространственный индекс уровня: для каждой клетки - список сущностей, стоящих в ней.
+ * Списки интрузивные и лежат в плоских массивах int: next/prev - соседи по списку,
+ * а головы списков разбиты на фрагменты по 32x32 клетки, как базовый слой TileMap.
+ * Массив голов фрагмента заводится, когда в нем впервые встает сущность, так что память
+ * растет с числом посещенных фрагментов, а не с площадью карты.
+ * Клетка задается ключом (фрагмент << 10) | (клетка во фрагменте). Дескриптор выдается при добавлении сущности и живет,
+ * пока ее не удалят; освобожденные дескрипторы используются повторно.
+ * Сама сущность задается числом-ссылкой, смысл которого определяет владелец индекса.
+ * Добавление, перемещение, удаление и поиск первой сущности в клетке - O(1).
+ *
+ * Не потокобезопасно: индексом владеет поток, выполняющий тик мира.
+ */
+class OccupancyGrid {
+    static final int NONE = -1;
+
+    private static final int CHUNK_BITS = TileMap.CHUNK_BITS;
+    private static final int CHUNK_MASK = TileMap.CHUNK_SIZE - 1;
+    private static final int CHUNK_CELLS = TileMap.CHUNK_SIZE * TileMap.CHUNK_SIZE;
+    private static final int LOCAL_BITS = 2 * CHUNK_BITS;
+
+    private int width;
+    private int height;
+    private int chunksX;
+    private int[][] heads = new int[0][];
+    private int[] next = new int[16];
+    private int[] prev = new int[16];
+    private int[] cellOf = new int[16];
+    private int[] refs = new int[16];
+    private int used = 0;
+    // Освобожденные дескрипторы связаны через next
+    private int freeHead = NONE;
+
+    /**
+     * Очищает индекс и подгоняет его под размер новой карты.
+     */
+    void reset(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.chunksX = (width + CHUNK_MASK) >> CHUNK_BITS;
+        int chunkCount = chunksX * ((height + CHUNK_MASK) >> CHUNK_BITS);
+        if (heads.length != chunkCount) {
+            heads = new int[chunkCount][];
+        } else {
+            for (int[] chunk : heads) {
+                if (chunk != null) {
+                    Arrays.fill(chunk, NONE);
+                }
+            }
+        }
+        used = 0;
+        freeHead = NONE;
+    }
+
+    int add(int ref, int x, int y) {
+        int handle;
+        if (freeHead != NONE) {
+            handle = freeHead;
+            freeHead = next[handle];
+        } else {
+            if (used == refs.length) {
+                grow();
+            }
+            handle = used++;
+        }
+        refs[handle] = ref;
+        link(handle, cellKey(x, y));
+        return handle;
+    }
+
+    void move(int handle, int x, int y) {
+        int cell = cellKey(x, y);
+        if (cellOf[handle] == cell) return;
+
+        unlink(handle);
+        link(handle, cell);
+    }
+
+    void remove(int handle) {
+        unlink(handle);
+        next[handle] = freeHead;
+        freeHead = handle;
+    }
+
+    /**
+     * Первый дескриптор в клетке или NONE. Клетки за пределами карты пусты.
+     */
+    int first(int x, int y) {
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            return NONE;
+        }
+        int[] chunk = heads[(y >> CHUNK_BITS) * chunksX + (x >> CHUNK_BITS)];
+        return chunk != null ? chunk[((y & CHUNK_MASK) << CHUNK_BITS) | (x & CHUNK_MASK)] : NONE;
+    }
+
+    int next(int handle) {
+        return next[handle];
+    }
+
+    int ref(int handle) {
+        return refs[handle];
+    }
+
+    private int cellKey(int x, int y) {
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            throw new IllegalArgumentException("Клетка за пределами карты: " + x + "," + y);
+        }
+        int chunkIndex = (y >> CHUNK_BITS) * chunksX + (x >> CHUNK_BITS);
+        return (chunkIndex << LOCAL_BITS) | ((y & CHUNK_MASK) << CHUNK_BITS) | (x & CHUNK_MASK);
+    }
+
+    private void link(int handle, int cell) {
+        int[] chunk = heads[cell >>> LOCAL_BITS];
+        if (chunk == null) {
+            chunk = new int[CHUNK_CELLS];
+            Arrays.fill(chunk, NONE);
+            heads[cell >>> LOCAL_BITS] = chunk;
+        }
+        int local = cell & (CHUNK_CELLS - 1);
+        int first = chunk[local];
+        next[handle] = first;
+        prev[handle] = NONE;
+        if (first != NONE) {
+            prev[first] = handle;
+        }
+        chunk[local] = handle;
+        cellOf[handle] = cell;
+    }
+
+    private void unlink(int handle) {
+        int before = prev[handle];
+        int after = next[handle];
+        if (before != NONE) {
+            next[before] = after;
+        } else {
+            heads[cellOf[handle] >>> LOCAL_BITS][cellOf[handle] & (CHUNK_CELLS - 1)] = after;
+        }
+        if (after != NONE) {
+            prev[after] = before;
+        }
+    }
+
+    private void grow() {
+        int capacity = refs.length * 2;
+        next = Arrays.copyOf(next, capacity);
+        prev = Arrays.copyOf(prev, capacity);
+        cellOf = Arrays.copyOf(cellOf, capacity);
+        refs = Arrays.copyOf(refs, capacity);
+    }
+}
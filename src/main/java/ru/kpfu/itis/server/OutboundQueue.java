@@ -0,0 +1,177 @@
+package ru.kpfu.itis.server;
+
+import ru.kpfu.itis.protocol.EncodedFrame;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Ограниченная очередь исходящих кадров одного клиента с тремя полосами:
+ * состояние (хранится только последний кадр), события и чат.
+ * События терять нельзя - при переполнении клиента нужно отключать,
+ * из чата при переполнении выбрасываются самые старые сообщения.
+ */
+class OutboundQueue {
+    static final int MAX_EVENTS = 512;
+    static final int MAX_CHAT = 64;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<EncodedFrame> events = new ArrayDeque<>();
+    private final ArrayDeque<EncodedFrame> chat = new ArrayDeque<>();
+    private EncodedFrame state;
+    // Момент, с которого в очереди лежат неотправленные кадры, 0 - очередь пуста
+    private long pendingSince = 0;
+    private long droppedStates = 0;
+    private long droppedChat = 0;
+    private int maxDepth = 0;
+
+    void offerState(EncodedFrame frame) {
+        lock.lock();
+        try {
+            if (state != null) {
+                droppedStates++;
+            }
+            state = frame;
+            touch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Возвращает false, если полоса событий переполнена.
+     */
+    boolean offerEvent(EncodedFrame frame) {
+        lock.lock();
+        try {
+            if (events.size() >= MAX_EVENTS) {
+                return false;
+            }
+            events.add(frame);
+            touch();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void offerChat(EncodedFrame frame) {
+        lock.lock();
+        try {
+            if (chat.size() >= MAX_CHAT) {
+                chat.poll();
+                droppedChat++;
+            }
+            chat.add(frame);
+            touch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Выбрасывает ещё не отправленное состояние, например при переходе в другую комнату.
+     */
+    void dropState() {
+        lock.lock();
+        try {
+            state = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Забирает всё накопленное в порядке отправки: события, чат, затем состояние.
+     * Состояние забирается первым, поэтому события, которые в нём уже отражены,
+     * всегда уходят в той же пачке.
+     */
+    List<EncodedFrame> drain() {
+        lock.lock();
+        try {
+            EncodedFrame latestState = state;
+            state = null;
+
+            List<EncodedFrame> frames = new ArrayList<>(events.size() + chat.size() + 1);
+            frames.addAll(events);
+            frames.addAll(chat);
+            if (latestState != null) {
+                frames.add(latestState);
+            }
+            events.clear();
+            chat.clear();
+            pendingSince = 0;
+            return frames;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Есть ли что отправлять без ожидания: состояние или события (чат ждет их)
+    boolean hasUrgent() {
+        lock.lock();
+        try {
+            return state != null || !events.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isStalled(long now, long timeoutMs) {
+        lock.lock();
+        try {
+            return pendingSince != 0 && now - pendingSince > timeoutMs;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int depth() {
+        lock.lock();
+        try {
+            return depthLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int maxDepth() {
+        lock.lock();
+        try {
+            return maxDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long droppedStates() {
+        lock.lock();
+        try {
+            return droppedStates;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long droppedChat() {
+        lock.lock();
+        try {
+            return droppedChat;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int depthLocked() {
+        return events.size() + chat.size() + (state != null ? 1 : 0);
+    }
+
+    private void touch() {
+        if (pendingSince == 0) {
+            pendingSince = System.currentTimeMillis();
+        }
+        maxDepth = Math.max(maxDepth, depthLocked());
+    }
+}
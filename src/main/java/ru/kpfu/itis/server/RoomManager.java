@@ -0,0 +1,178 @@
+package ru.kpfu.itis.server;
+
+import ru.kpfu.itis.protocol.GameProtocol;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Реестр комнат сервера. Создание, вход и выход выполняются под одной блокировкой:
+ * это редкие операции, зато проверка свободного места и переход между комнатами
+ * получаются атомарными. Пустая комната закрывается сразу после ухода последнего игрока.
+ */
+class RoomManager {
+    private static final Logger logger = LoggerFactory.getLogger(RoomManager.class);
+
+    private final GameServer server;
+    private final int maxRooms;
+    private final int roomCapacity;
+    private final Map<Integer, GameRoom> rooms = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private int nextRoomId = 1;
+
+    RoomManager(GameServer server, int maxRooms, int roomCapacity) {
+        this.server = server;
+        this.maxRooms = maxRooms;
+        this.roomCapacity = roomCapacity;
+    }
+
+    Collection<GameRoom> getRooms() {
+        return rooms.values();
+    }
+
+    List<GameProtocol.RoomInfoData> listRooms() {
+        List<GameRoom> sorted = new ArrayList<>(rooms.values());
+        sorted.sort(Comparator.comparingInt(GameRoom::getId));
+
+        List<GameProtocol.RoomInfoData> result = new ArrayList<>(sorted.size());
+        for (GameRoom room : sorted) {
+            result.add(room.info());
+        }
+        return result;
+    }
+
+    /**
+     * Создает комнату и переводит в нее игрока. Возвращает null, если достигнут лимит комнат.
+     */
+    GameRoom createAndJoin(GameServer.ClientHandler handler, String name) {
+        lock.lock();
+        try {
+            GameRoom room = createRoom(name);
+            if (room != null) {
+                moveLocked(handler, room);
+            }
+            return room;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Возвращает false, если комнаты нет или в ней нет мест.
+     */
+    boolean join(GameServer.ClientHandler handler, int roomId) {
+        lock.lock();
+        try {
+            GameRoom room = rooms.get(roomId);
+            if (room == null) {
+                return false;
+            }
+            if (handler.getRoom() == room) {
+                return true;
+            }
+            if (room.isFull()) {
+                return false;
+            }
+            moveLocked(handler, room);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Сажает игрока в первую комнату со свободным местом или открывает новую.
+     */
+    GameRoom quickJoin(GameServer.ClientHandler handler) {
+        lock.lock();
+        try {
+            GameRoom current = handler.getRoom();
+            if (current != null) {
+                return current;
+            }
+
+            GameRoom target = null;
+            for (GameRoom room : rooms.values()) {
+                if (!room.isFull() && (target == null || room.getId() < target.getId())) {
+                    target = room;
+                }
+            }
+            if (target == null) {
+                target = createRoom(null);
+            }
+            if (target != null) {
+                moveLocked(handler, target);
+            }
+            return target;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void leave(GameServer.ClientHandler handler) {
+        lock.lock();
+        try {
+            GameRoom room = handler.getRoom();
+            if (room != null) {
+                handler.enterRoom(null, 0);
+                room.removeMember(handler);
+                closeIfEmpty(room);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void shutdown() {
+        lock.lock();
+        try {
+            for (GameRoom room : rooms.values()) {
+                room.shutdown();
+            }
+            rooms.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private GameRoom createRoom(String name) {
+        if (rooms.size() >= maxRooms) {
+            logger.warn("Достигнут лимит комнат ({})", maxRooms);
+            return null;
+        }
+
+        int roomId = nextRoomId++;
+        String roomName = name == null || name.isEmpty() ? "Комната " + roomId : name;
+        GameRoom room = new GameRoom(server, roomId, roomName, roomCapacity, server.getTickNanos(),
+                server.getViewRadius());
+        rooms.put(roomId, room);
+        logger.info("Создана комната #{} «{}» (всего комнат: {})", roomId, roomName, rooms.size());
+        return room;
+    }
+
+    private void moveLocked(GameServer.ClientHandler handler, GameRoom target) {
+        GameRoom previous = handler.getRoom();
+        if (previous != null) {
+            previous.removeMember(handler);
+        }
+        // Снимки новой комнаты начинаются со следующего тика сервера
+        target.addMember(handler, server.getCurrentTick() + 1);
+        if (previous != null) {
+            closeIfEmpty(previous);
+        }
+    }
+
+    private void closeIfEmpty(GameRoom room) {
+        if (room.getPlayerCount() == 0 && rooms.remove(room.getId(), room)) {
+            room.shutdown();
+            logger.info("Комната #{} «{}» закрыта (всего комнат: {})", room.getId(), room.getName(), rooms.size());
+        }
+    }
+}
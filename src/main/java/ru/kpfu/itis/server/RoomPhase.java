@@ -0,0 +1,14 @@
+package ru.kpfu.itis.server;
+
+/**
+ * Фаза комнаты. Переходы между фазами отсчитываются в тиках игрового цикла,
+ * а не таймерами и не sleep.
+ */
+public enum RoomPhase {
+    // Обычная игра
+    PLAYING,
+    // Все игроки у дверей, через заданное число тиков загрузится следующий уровень
+    TRANSITIONING,
+    // Игрок погиб, через заданное число тиков уровень начнется заново
+    RESTARTING
+}
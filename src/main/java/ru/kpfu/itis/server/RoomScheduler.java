@@ -0,0 +1,109 @@
+package ru.kpfu.itis.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Раскладывает тики комнат по пулу ForkJoinPool размером с число ядер.
+ * Комнаты ставятся в очередь от самой тяжелой к самой легкой (по средней
+ * длительности тика), свободные потоки забирают задачи сами, поэтому распределение
+ * по потокам пересчитывается каждый раунд. Раунд заканчивается, когда отработали
+ * все комнаты: одна комната никогда не тикает в двух потоках сразу.
+ */
+class RoomScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(RoomScheduler.class);
+
+    private final ForkJoinPool pool;
+    private final long tickNanos;
+    // Бюджет одной комнаты на тик - десятая часть периода; превышение считается перерасходом
+    private final long roomBudgetNanos;
+    private volatile long rounds = 0;
+    private volatile long roundOverruns = 0;
+    private volatile long maxRoundNanos = 0;
+
+    RoomScheduler(int parallelism, long tickNanos) {
+        this.tickNanos = tickNanos;
+        this.roomBudgetNanos = tickNanos / 10;
+        pool = new ForkJoinPool(parallelism, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("room-worker-" + thread.getPoolIndex());
+            return thread;
+        }, (thread, e) -> logger.error("Ошибка в потоке {}", thread.getName(), e), false);
+        logger.info("Планировщик комнат: потоков {}, бюджет комнаты {} мкс",
+                parallelism, TimeUnit.NANOSECONDS.toMicros(roomBudgetNanos));
+    }
+
+    static int defaultParallelism() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Выполняет один тик всех комнат и ждет его окончания. Вызывается только потоком игрового цикла.
+     */
+    void runRound(Collection<GameRoom> rooms, int snapshotTick) {
+        long start = System.nanoTime();
+
+        List<GameRoom> order = new ArrayList<>(rooms);
+        order.sort(Comparator.comparingLong(GameRoom::getAverageTickNanos).reversed());
+
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(order.size());
+        for (GameRoom room : order) {
+            tasks.add(pool.submit(() -> tickRoom(room, snapshotTick)));
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+
+        long elapsed = System.nanoTime() - start;
+        rounds++;
+        maxRoundNanos = Math.max(maxRoundNanos, elapsed);
+        if (elapsed > tickNanos) {
+            roundOverruns++;
+            logger.warn("Раунд тика {} занял {} мс при периоде {} мс (комнат: {})", snapshotTick,
+                    TimeUnit.NANOSECONDS.toMillis(elapsed), TimeUnit.NANOSECONDS.toMillis(tickNanos), order.size());
+        }
+    }
+
+    private void tickRoom(GameRoom room, int snapshotTick) {
+        long start = System.nanoTime();
+        room.tick(snapshotTick);
+        room.recordTick(System.nanoTime() - start, roomBudgetNanos);
+    }
+
+    void logStats(Collection<GameRoom> rooms) {
+        logger.info("Планировщик: раундов {}, долгих раундов {}, худший раунд {} мкс, краж задач {}",
+                rounds, roundOverruns, TimeUnit.NANOSECONDS.toMicros(maxRoundNanos), pool.getStealCount());
+
+        long snapshotSize = 0;
+        long snapshotBytes = 0;
+        for (GameRoom room : rooms) {
+            snapshotSize += room.getLatestSnapshotSize();
+            snapshotBytes += room.getLatestSnapshotBytes();
+        }
+        logger.info("Снимки комнат: {} байт за тик на все комнаты, игрокам отправлено {} байт",
+                snapshotSize, snapshotBytes);
+
+        for (GameRoom room : rooms) {
+            if (room.getBudgetOverruns() > 0) {
+                logger.info("Комната #{}: средний тик {} мкс, худший {} мкс, перерасходов бюджета {}",
+                        room.getId(),
+                        TimeUnit.NANOSECONDS.toMicros(room.getAverageTickNanos()),
+                        TimeUnit.NANOSECONDS.toMicros(room.getMaxTickNanos()),
+                        room.getBudgetOverruns());
+            }
+        }
+    }
+
+    void shutdown() {
+        pool.shutdownNow();
+    }
+}
@@ -11,6 +11,9 @@ public class ServerMain {
     private static final Logger logger = LoggerFactory.getLogger(ServerMain.class);
     private static GameServer server;
     private static int actualPort = -1;
+    private static TransportMode transportMode = TransportMode.BLOCKING;
+    private static int tickRate = GameConstants.TICK_RATE;
+    private static int viewRadius = GameConstants.VIEW_RADIUS;
 
     public static void main(String[] args) {
         try {
@@ -27,6 +30,35 @@ public class ServerMain {
                     port = GameConstants.SERVER_PORT;
                 }
             }
+            if (args.length > 1) {
+                try {
+                    transportMode = TransportMode.parse(args[1]);
+                } catch (IllegalArgumentException e) {
+                    logger.warn("{}, используем {}", e.getMessage(), TransportMode.BLOCKING);
+                }
+            }
+            if (args.length > 2) {
+                try {
+                    tickRate = Integer.parseInt(args[2]);
+                    if (tickRate <= 0 || tickRate > 1000) {
+                        throw new NumberFormatException();
+                    }
+                } catch (NumberFormatException e) {
+                    logger.warn("Неверная частота тиков, используем {}", GameConstants.TICK_RATE);
+                    tickRate = GameConstants.TICK_RATE;
+                }
+            }
+            if (args.length > 3) {
+                try {
+                    viewRadius = Integer.parseInt(args[3]);
+                    if (viewRadius < 0 || viewRadius > GameConstants.MAX_VIEW_RADIUS) {
+                        throw new NumberFormatException();
+                    }
+                } catch (NumberFormatException e) {
+                    logger.warn("Неверный радиус области интереса, используем {}", GameConstants.VIEW_RADIUS);
+                    viewRadius = GameConstants.VIEW_RADIUS;
+                }
+            }
 
             if (startServer(port)) {
                 logger.info("\n✅ Сервер успешно запущен на порту {}", actualPort);
@@ -54,7 +86,8 @@ public class ServerMain {
                 ServerSocket testSocket = new ServerSocket(currentPort);
                 testSocket.close();
 
-                server = new GameServer(currentPort);
+                server = new GameServer(currentPort, transportMode,
+                        GameConstants.MAX_ROOMS * GameConstants.MAX_PLAYERS, tickRate, viewRadius);
                 server.start();
                 actualPort = currentPort;
 
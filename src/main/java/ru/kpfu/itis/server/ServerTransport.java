@@ -0,0 +1,18 @@
+package ru.kpfu.itis.server;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Сетевой движок сервера: принимает подключения и передаёт их в GameServer.openSession.
+ */
+interface ServerTransport {
+
+    /**
+     * Исполнитель для задач, которые пишут очередь клиента в соединение.
+     */
+    Executor writerExecutor();
+
+    void start();
+
+    void stop();
+}
@@ -0,0 +1,93 @@
+package ru.kpfu.itis.server;
+
+import ru.kpfu.itis.protocol.SnapshotHistory;
+
+import java.lang.invoke.VarHandle;
+
+/**
+ * Кольцо снимков. Тик пишет снимок в следующий слот, переиспользуя массив слота,
+ * если размер снимка не изменился, и публикует его записью volatile-счетчика.
+ * Другие потоки (статистика, список комнат) читают последний готовый снимок без блокировок.
+ * Комната держит общее кольцо с полным снимком мира и по кольцу на каждого игрока -
+ * со снимком его области интереса.
+ *
+ * Слот переписывается только через CAPACITY публикаций. Клиентские SnapshotHistory держат
+ * ссылки на снимки не дольше SnapshotHistory.DEFAULT_CAPACITY тиков, поэтому кольцо вдвое больше
+ * и база для дельты не может оказаться перезаписанной. Читатели из других потоков такой
+ * гарантии не имеют и проверяют номер слота после чтения - см. latest().
+ */
+class SnapshotRing {
+    static final int CAPACITY = SnapshotHistory.DEFAULT_CAPACITY * 2;
+
+    private final byte[][] slots = new byte[CAPACITY][];
+    // Номер последней публикации; -1 - еще ничего не опубликовано
+    private volatile long published = -1;
+    // Номер снимка, который пишется сейчас; пишется до первого байта снимка
+    private volatile long claimed = -1;
+    private long next = 0;
+
+    /**
+     * Массив под следующий снимок ровно размера size. Вызывается только потоком тика комнаты.
+     */
+    byte[] claim(int size) {
+        claimed = next;
+        // Volatile-запись не держит следующие за ней обычные записи: без барьера байты
+        // нового снимка могли бы попасть в слот раньше, чем читатель увидит claimed
+        VarHandle.storeStoreFence();
+        int slot = slotOf(next);
+        byte[] buffer = slots[slot];
+        if (buffer == null || buffer.length != size) {
+            buffer = new byte[size];
+            slots[slot] = buffer;
+        }
+        return buffer;
+    }
+
+    /**
+     * Публикует снимок, записанный в массив из claim.
+     */
+    void publish() {
+        published = next;
+        next++;
+    }
+
+    int latestSize() {
+        long sequence = published;
+        return sequence < 0 ? 0 : slots[slotOf(sequence)].length;
+    }
+
+    /**
+     * Копия последнего опубликованного снимка с его номером или null, если публикаций не было.
+     * Можно вызывать из любого потока. Слот копируется без блокировки; после копирования
+     * номер снимка, который пишет тик, читается еще раз: если писатель успел по кругу дойти
+     * до скопированного слота, копия могла порваться - чтение повторяется.
+     */
+    Snapshot latest() {
+        while (true) {
+            long sequence = published;
+            if (sequence < 0) return null;
+
+            byte[] data = slots[slotOf(sequence)].clone();
+            // Чтения слота не должны переехать за повторное чтение claimed
+            VarHandle.acquireFence();
+            if (claimed - sequence < CAPACITY) {
+                return new Snapshot(sequence, data);
+            }
+        }
+    }
+
+    private static int slotOf(long sequence) {
+        return (int) (sequence % CAPACITY);
+    }
+
+    static final class Snapshot {
+        // Номер публикации: растет на единицу с каждым тиком комнаты
+        final long sequence;
+        final byte[] data;
+
+        Snapshot(long sequence, byte[] data) {
+            this.sequence = sequence;
+            this.data = data;
+        }
+    }
+}
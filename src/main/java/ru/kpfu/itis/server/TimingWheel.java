@@ -0,0 +1,142 @@
+package ru.kpfu.itis.server;
+
+/**
+ * Иерархическое колесо таймеров с шагом в один тик игрового цикла.
+ * Нижний уровень - 256 ячеек по одному тику, верхний - 256 ячеек по 256 тиков;
+ * более дальние задачи ждут в отдельном списке. Когда нижний уровень делает
+ * оборот, очередная ячейка верхнего уровня раскладывается по нижнему.
+ * Работа за тик пропорциональна числу сработавших задач, а не числу сущностей.
+ *
+ * Не потокобезопасно: колесом владеет поток, выполняющий тик мира.
+ */
+class TimingWheel {
+    private static final int WHEEL_BITS = 8;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final long UPPER_SPAN = (long) WHEEL_SIZE * WHEEL_SIZE;
+
+    private final Timeout[] lowerHeads = new Timeout[WHEEL_SIZE];
+    private final Timeout[] lowerTails = new Timeout[WHEEL_SIZE];
+    private final Timeout[] upperHeads = new Timeout[WHEEL_SIZE];
+    private final Timeout[] upperTails = new Timeout[WHEEL_SIZE];
+    private Timeout overflow;
+    private long currentTick = 0;
+    // clear() увеличивает поколение, и задачи прежнего поколения уже не срабатывают
+    private int generation = 0;
+    private int size = 0;
+
+    /**
+     * Выполнит задачу через delayTicks тиков (не меньше одного).
+     */
+    void schedule(long delayTicks, Runnable task) {
+        Timeout timeout = new Timeout(currentTick + Math.max(1, delayTicks), task, generation);
+        place(timeout);
+        size++;
+    }
+
+    /**
+     * Доводит колесо до указанного тика и выполняет все задачи, срок которых наступил.
+     */
+    void advance(long tick) {
+        while (currentTick < tick) {
+            currentTick++;
+
+            if ((currentTick & WHEEL_MASK) == 0) {
+                int upperSlot = (int) ((currentTick >>> WHEEL_BITS) & WHEEL_MASK);
+                if (upperSlot == 0) {
+                    Timeout pending = overflow;
+                    overflow = null;
+                    replace(pending);
+                }
+                Timeout pending = upperHeads[upperSlot];
+                upperHeads[upperSlot] = null;
+                upperTails[upperSlot] = null;
+                replace(pending);
+            }
+
+            int slot = (int) (currentTick & WHEEL_MASK);
+            Timeout due = lowerHeads[slot];
+            lowerHeads[slot] = null;
+            lowerTails[slot] = null;
+            fire(due);
+        }
+    }
+
+    /**
+     * Отменяет все запланированные задачи, например при загрузке нового уровня.
+     */
+    void clear() {
+        generation++;
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            lowerHeads[i] = null;
+            lowerTails[i] = null;
+            upperHeads[i] = null;
+            upperTails[i] = null;
+        }
+        overflow = null;
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void fire(Timeout timeout) {
+        int firedGeneration = generation;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            timeout.next = null;
+            // Задача могла очистить колесо - оставшиеся в этой ячейке уже отменены
+            if (timeout.generation == firedGeneration && generation == firedGeneration) {
+                size--;
+                timeout.task.run();
+            }
+            timeout = next;
+        }
+    }
+
+    private void replace(Timeout timeout) {
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            timeout.next = null;
+            place(timeout);
+            timeout = next;
+        }
+    }
+
+    private void place(Timeout timeout) {
+        long delta = timeout.deadline - currentTick;
+        if (delta < WHEEL_SIZE) {
+            int slot = (int) (timeout.deadline & WHEEL_MASK);
+            append(lowerHeads, lowerTails, slot, timeout);
+        } else if (delta < UPPER_SPAN) {
+            int slot = (int) ((timeout.deadline >>> WHEEL_BITS) & WHEEL_MASK);
+            append(upperHeads, upperTails, slot, timeout);
+        } else {
+            timeout.next = overflow;
+            overflow = timeout;
+        }
+    }
+
+    private static void append(Timeout[] heads, Timeout[] tails, int slot, Timeout timeout) {
+        if (tails[slot] == null) {
+            heads[slot] = timeout;
+        } else {
+            tails[slot].next = timeout;
+        }
+        tails[slot] = timeout;
+    }
+
+    private static final class Timeout {
+        final long deadline;
+        final Runnable task;
+        final int generation;
+        Timeout next;
+
+        Timeout(long deadline, Runnable task, int generation) {
+            this.deadline = deadline;
+            this.task = task;
+            this.generation = generation;
+        }
+    }
+}
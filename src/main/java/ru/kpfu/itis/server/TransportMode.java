@@ -0,0 +1,22 @@
+package ru.kpfu.itis.server;
+
+/**
+ * Способ обслуживания сетевых подключений, выбирается при запуске сервера.
+ */
+public enum TransportMode {
+    // Поток на каждое соединение и блокирующие сокеты
+    BLOCKING,
+    // То же самое, но на виртуальных потоках
+    VIRTUAL,
+    // Несколько потоков с Selector на все соединения
+    NIO;
+
+    public static TransportMode parse(String value) {
+        for (TransportMode mode : values()) {
+            if (mode.name().equalsIgnoreCase(value)) {
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("Неизвестный режим транспорта: " + value);
+    }
+}
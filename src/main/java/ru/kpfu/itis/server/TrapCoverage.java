@@ -0,0 +1,142 @@
+package ru.kpfu.itis.server;
+
+import ru.kpfu.itis.common.Trap;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Какие ловушки бьют в какую клетку. Строится один раз при загрузке уровня
+ * в сжатом виде (CSR) только по клеткам, куда бьет хотя бы одна ловушка:
+ * cells - отсортированные номера таких клеток (y * width + x), номера ловушек
+ * клетки cells[i] лежат в trapIds с offsets[i] до offsets[i + 1], в порядке списка
+ * ловушек уровня. Память зависит от числа ловушек, а не от площади карты.
+ * Проверка клетки - двоичный поиск, без выделения памяти и перебора ловушек.
+ * Отдельно хранятся клетки, где ловушки стоят, - для выборки ловушек по прямоугольнику.
+ */
+class TrapCoverage {
+    private int width;
+    private int height;
+    private int[] cells = new int[0];
+    private int[] offsets = new int[1];
+    private int[] trapIds = new int[0];
+    // Пары (клетка ловушки << 32 | номер ловушки) по возрастанию
+    private long[] placements = new long[0];
+    private int maxRange;
+
+    void build(List<Trap> traps, int width, int height) {
+        this.width = width;
+        this.height = height;
+
+        // Пары (клетка << 32 | ловушка): после сортировки ловушки клетки идут подряд и по порядку
+        int count = 0;
+        for (Trap trap : traps) {
+            count += Math.max(trap.range, 0);
+        }
+        long[] pairs = new long[count];
+        count = 0;
+        for (int id = 0; id < traps.size(); id++) {
+            Trap trap = traps.get(id);
+            for (int i = 1; i <= trap.range; i++) {
+                int cell = targetCell(trap, i);
+                if (cell >= 0) {
+                    pairs[count++] = ((long) cell << 32) | id;
+                }
+            }
+        }
+        Arrays.sort(pairs, 0, count);
+
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || (pairs[i] >>> 32) != (pairs[i - 1] >>> 32)) {
+                distinct++;
+            }
+        }
+        cells = new int[distinct];
+        offsets = new int[distinct + 1];
+        trapIds = new int[count];
+        int slot = -1;
+        for (int i = 0; i < count; i++) {
+            int cell = (int) (pairs[i] >>> 32);
+            if (slot < 0 || cells[slot] != cell) {
+                cells[++slot] = cell;
+                offsets[slot] = i;
+            }
+            trapIds[i] = (int) pairs[i];
+        }
+        offsets[distinct] = count;
+
+        placements = new long[traps.size()];
+        count = 0;
+        maxRange = 0;
+        for (int id = 0; id < traps.size(); id++) {
+            Trap trap = traps.get(id);
+            maxRange = Math.max(maxRange, trap.range);
+            if (isInside(trap.x, trap.y)) {
+                placements[count++] = ((long) (trap.y * width + trap.x) << 32) | id;
+            }
+        }
+        placements = Arrays.copyOf(placements, count);
+        Arrays.sort(placements);
+    }
+
+    /**
+     * Начало диапазона ловушек клетки; клетки за пределами карты и вне выстрелов пусты.
+     */
+    int start(int x, int y) {
+        int slot = slotOf(x, y);
+        return slot >= 0 ? offsets[slot] : 0;
+    }
+
+    int end(int x, int y) {
+        int slot = slotOf(x, y);
+        return slot >= 0 ? offsets[slot + 1] : 0;
+    }
+
+    int trapAt(int index) {
+        return trapIds[index];
+    }
+
+    // Наибольшая дальность атаки среди ловушек уровня
+    int maxRange() {
+        return maxRange;
+    }
+
+    /**
+     * Номера ловушек, стоящих в прямоугольнике [minX, maxX] x [minY, maxY], по возрастанию.
+     * Пишутся в out, который не короче числа ловушек уровня; возвращается их количество.
+     * На строку прямоугольника - один двоичный поиск.
+     */
+    int trapsIn(int minX, int minY, int maxX, int maxY, int[] out) {
+        minX = Math.max(minX, 0);
+        minY = Math.max(minY, 0);
+        maxX = Math.min(maxX, width - 1);
+        maxY = Math.min(maxY, height - 1);
+
+        int count = 0;
+        for (int y = minY; y <= maxY && minX <= maxX; y++) {
+            long last = y * width + maxX;
+            int i = Arrays.binarySearch(placements, (long) (y * width + minX) << 32);
+            for (i = i >= 0 ? i : -i - 1; i < placements.length && placements[i] >>> 32 <= last; i++) {
+                out[count++] = (int) placements[i];
+            }
+        }
+        Arrays.sort(out, 0, count);
+        return count;
+    }
+
+    private int slotOf(int x, int y) {
+        return isInside(x, y) ? Arrays.binarySearch(cells, y * width + x) : -1;
+    }
+
+    // Клетка на расстоянии distance по направлению выстрела или -1, если она за картой
+    private int targetCell(Trap trap, int distance) {
+        int x = trap.x + trap.direction.dx * distance;
+        int y = trap.y + trap.direction.dy * distance;
+        return isInside(x, y) ? y * width + x : -1;
+    }
+
+    private boolean isInside(int x, int y) {
+        return x >= 0 && x < width && y >= 0 && y < height;
+    }
+}
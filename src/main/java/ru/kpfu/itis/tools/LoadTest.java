@@ -0,0 +1,224 @@
+package ru.kpfu.itis.tools;
+
+import ru.kpfu.itis.common.Direction;
+import ru.kpfu.itis.common.GameConstants;
+import ru.kpfu.itis.protocol.FrameDecoder;
+import ru.kpfu.itis.protocol.GameMessage;
+import ru.kpfu.itis.protocol.GameProtocol;
+import ru.kpfu.itis.protocol.SnapshotDelta;
+import ru.kpfu.itis.server.GameServer;
+import ru.kpfu.itis.server.TransportMode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Нагрузочный прогон одинакового сценария для каждого режима транспорта.
+ * Боты подключаются, ходят в случайную сторону и подтверждают снимки.
+ * Сервер сам рассаживает их по комнатам, по GameConstants.MAX_PLAYERS в каждой.
+ * Запуск: LoadTest [клиентов] [секунд] [режимы через запятую]
+ */
+public class LoadTest {
+    private static final Logger logger = LoggerFactory.getLogger(LoadTest.class);
+
+    private static final long MOVE_INTERVAL_MS = 200;
+
+    public static void main(String[] args) throws Exception {
+        int clientCount = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        List<TransportMode> modes = new ArrayList<>();
+        if (args.length > 2) {
+            for (String mode : args[2].split(",")) {
+                modes.add(TransportMode.parse(mode.trim()));
+            }
+        } else {
+            modes.addAll(List.of(TransportMode.values()));
+        }
+
+        List<String> results = new ArrayList<>();
+        for (TransportMode mode : modes) {
+            results.add(run(mode, clientCount, seconds));
+        }
+
+        logger.info("режим      клиентов  подключение,мс  состояний/с  КБ/с   ответ на ход,мс");
+        for (String result : results) {
+            logger.info(result);
+        }
+    }
+
+    private static String run(TransportMode mode, int clientCount, int seconds) throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+
+        GameServer server = new GameServer(port, mode, clientCount);
+        server.start();
+
+        Stats stats = new Stats();
+        List<Bot> bots = new ArrayList<>();
+        ExecutorService readers = Executors.newVirtualThreadPerTaskExecutor();
+
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < clientCount; i++) {
+            Bot bot = new Bot(i, stats);
+            bot.connect(port);
+            bots.add(bot);
+            readers.execute(bot::readLoop);
+        }
+        long connectMs = (System.nanoTime() - connectStart) / 1_000_000;
+
+        stats.reset();
+        long end = System.currentTimeMillis() + seconds * 1000L;
+        while (System.currentTimeMillis() < end) {
+            for (Bot bot : bots) {
+                bot.move();
+            }
+            Thread.sleep(MOVE_INTERVAL_MS);
+        }
+
+        long states = stats.states.get();
+        long bytes = stats.bytes.get();
+        long replies = stats.moveReplies.get();
+        double replyMs = replies > 0 ? stats.moveReplyNanos.get() / 1e6 / replies : 0;
+
+        // Сначала сервер: он сам закрывает соединения, и ему не приходится писать в сокеты ушедших ботов
+        server.stop();
+        for (Bot bot : bots) {
+            bot.close();
+        }
+        readers.close();
+
+        return String.format("%-10s %8d  %14d  %11.0f  %5.0f  %15.1f",
+                mode, clientCount, connectMs, states / (double) seconds,
+                bytes / 1024.0 / seconds, replyMs);
+    }
+
+    private static class Stats {
+        final AtomicLong states = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong moveReplies = new AtomicLong();
+        final AtomicLong moveReplyNanos = new AtomicLong();
+
+        void reset() {
+            states.set(0);
+            bytes.set(0);
+            moveReplies.set(0);
+            moveReplyNanos.set(0);
+        }
+    }
+
+    private static class Bot {
+        private final int index;
+        private final Stats stats;
+        private final FrameDecoder decoder = new FrameDecoder(4096);
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private Socket socket;
+        private InputStream in;
+        private OutputStream out;
+        private volatile int playerId = -1;
+        private volatile long moveSentAt = 0;
+
+        Bot(int index, Stats stats) {
+            this.index = index;
+            this.stats = stats;
+        }
+
+        void connect(int port) throws IOException {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress("localhost", port), 5000);
+            in = socket.getInputStream();
+            out = socket.getOutputStream();
+            String character = GameConstants.CHARACTER_NAMES[index % GameConstants.CHARACTER_NAMES.length];
+            send(GameProtocol.createConnectMessage("bot" + index, character, false));
+        }
+
+        void move() throws IOException {
+            if (playerId < 0 || socket.isClosed()) return;
+            Direction[] directions = Direction.values();
+            Direction direction = directions[ThreadLocalRandom.current().nextInt(directions.length)];
+            if (moveSentAt == 0) {
+                moveSentAt = System.nanoTime();
+            }
+            send(GameProtocol.createMoveMessage(playerId, GameProtocol.directionToByte(direction)));
+        }
+
+        void readLoop() {
+            try {
+                GameMessage message;
+                while ((message = decoder.readMessage(in)) != null) {
+                    stats.bytes.addAndGet(GameProtocol.FRAME_OVERHEAD + message.getLength());
+                    handle(message);
+                }
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    logger.warn("Бот {} отключен: {}", index, e.getMessage());
+                }
+            }
+        }
+
+        private void handle(GameMessage message) throws IOException {
+            switch (message.getType()) {
+                case GameProtocol.TYPE_CONNECT:
+                    if (playerId < 0) {
+                        playerId = Integer.parseInt(GameProtocol.parseConnectMessage(message)[0]);
+                    }
+                    break;
+                case GameProtocol.TYPE_BATCH:
+                    for (GameMessage batched : GameProtocol.parseBatchMessage(message)) {
+                        handle(batched);
+                    }
+                    break;
+                case GameProtocol.TYPE_GAME_STATE:
+                case GameProtocol.TYPE_GAME_STATE_DELTA:
+                    ByteBuffer payload = message.payload();
+                    int tick = message.getType() == GameProtocol.TYPE_GAME_STATE
+                            ? payload.getInt(payload.position())
+                            : SnapshotDelta.readTick(payload);
+                    stats.states.incrementAndGet();
+                    long sentAt = moveSentAt;
+                    if (sentAt != 0) {
+                        moveSentAt = 0;
+                        stats.moveReplies.incrementAndGet();
+                        stats.moveReplyNanos.addAndGet(System.nanoTime() - sentAt);
+                    }
+                    send(GameProtocol.createStateAckMessage(tick));
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void send(GameMessage message) throws IOException {
+            writeLock.lock();
+            try {
+                GameProtocol.writeMessage(out, message);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.debug("Ошибка при закрытии сокета бота", e);
+            }
+        }
+    }
+}